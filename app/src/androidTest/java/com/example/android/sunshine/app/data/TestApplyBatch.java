@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+/*
+    Checks that a batch of provider operations is stored all together or not at all, and that
+    each URI it touched is notified once.
+ */
+public class TestApplyBatch extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        super.tearDown();
+    }
+
+    public void testMixedBatchNotifiesOncePerUri() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        // The weather rows point at the location inserted above
+        ContentValues weather = TestUtilities.createWeatherValues(0);
+        weather.remove(WeatherEntry.COLUMN_LOC_KEY);
+        operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                .withValues(weather)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Santa's Village")
+                .withSelection(LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{TestUtilities.TEST_LOCATION})
+                .build());
+
+        TestUtilities.TestContentObserver locationObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                locationObserver);
+        ContentProviderResult[] results = mContext.getContentResolver()
+                .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        int locationChanges = locationObserver.waitForNotificationsAndCount();
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+
+        assertEquals(operations.size(), results.length);
+        assertEquals("Error: Location changed twice in a batch but not notified once",
+                1, locationChanges);
+
+        long locationId = ContentUris.parseId(results[0].uri);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, LocationEntry.COLUMN_CITY_NAME},
+                null, null, null);
+        assertTrue("Error: Weather inserted by the batch is missing", cursor.moveToFirst());
+        assertEquals(locationId, cursor.getLong(0));
+        assertEquals("Santa's Village", cursor.getString(1));
+        cursor.close();
+    }
+
+    public void testFailedBatchRollsBack() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        // No location setting, which the location table doesn't allow
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Nowhere")
+                .build());
+
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            fail("Error: Batch with an invalid insert succeeded");
+        } catch (SQLException expected) {
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: Operation before the failure was not rolled back",
+                0, cursor.getCount());
+        cursor.close();
+        assertEquals("Error: Location ID cached for a rolled back insert",
+                -1, LocationIdCache.getInstance().get(TestUtilities.TEST_LOCATION));
+    }
+}
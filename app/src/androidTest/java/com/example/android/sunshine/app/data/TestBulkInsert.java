@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks the compiled statement bulk insert path of the provider, and compares it with
+    inserting row by row through SQLiteDatabase.insert, as the provider used to.
+ */
+public class TestBulkInsert extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+
+    private static final int[] BENCHMARK_ROWS = {14, 1000, 100000};
+
+    private WeatherDbHelper mDbHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    public void testBulkInsertLocations() {
+        ContentValues[] locations = createLocationValues(20);
+
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                locationObserver);
+        int insertCount = mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI,
+                locations);
+        locationObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+
+        assertEquals(locations.length, insertCount);
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null, null,
+                null, LocationEntry._ID + " ASC");
+        assertEquals(locations.length, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < locations.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("Error validating LocationEntry " + i,
+                    cursor, locations[i]);
+        }
+        cursor.close();
+    }
+
+    public void testDuplicateLocationSkipped() {
+        ContentValues[] locations = createLocationValues(3);
+        locations[2] = locations[0];
+
+        int insertCount = mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI,
+                locations);
+        assertEquals("Error: Duplicate location setting was counted as inserted", 2, insertCount);
+    }
+
+    public void testBulkInsertMixedColumns() {
+        // A row with other columns than the one before it needs the statement compiled again
+        ContentValues[] locations = createLocationValues(2);
+        locations[1].put(LocationEntry.COLUMN_ETAG, "\"abc\"");
+
+        assertEquals(locations.length,
+                mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, locations));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_ETAG},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locations[1].getAsString(LocationEntry.COLUMN_LOCATION_SETTING)},
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("\"abc\"", cursor.getString(0));
+        cursor.close();
+    }
+
+    public void testBulkInsertBenchmark() {
+        for (int rows : BENCHMARK_ROWS) {
+            long locationId = insertLocation();
+
+            ContentValues[] weather = createWeatherValues(locationId, rows);
+            long legacyWeatherMs = insertRowByRow(WeatherEntry.TABLE_NAME, weather);
+            clearWeather();
+            long start = SystemClock.elapsedRealtime();
+            int count = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weather);
+            long compiledWeatherMs = SystemClock.elapsedRealtime() - start;
+            assertEquals(rows, count);
+            TestUtilities.deleteAllRecordsFromProvider(mContext);
+
+            ContentValues[] locations = createLocationValues(rows);
+            long legacyLocationMs = insertRowByRow(LocationEntry.TABLE_NAME, locations);
+            clearLocations();
+            start = SystemClock.elapsedRealtime();
+            count = mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, locations);
+            long compiledLocationMs = SystemClock.elapsedRealtime() - start;
+            assertEquals(rows, count);
+            TestUtilities.deleteAllRecordsFromProvider(mContext);
+
+            Log.d(LOG_TAG, rows + " rows: weather " + legacyWeatherMs + "ms row by row, "
+                    + compiledWeatherMs + "ms compiled; location " + legacyLocationMs
+                    + "ms row by row, " + compiledLocationMs + "ms compiled");
+        }
+    }
+
+    /**
+     * Inserts the rows the way the provider used to, one SQLiteDatabase.insert per row inside
+     * one transaction.  The per row transactions and notifications of the old location path
+     * would make the largest runs take minutes, so this is the kinder comparison.
+     *
+     * @return how long it took, in ms
+     */
+    private long insertRowByRow(String table, ContentValues[] values) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                assertTrue(db.insert(table, null, value) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long insertLocation() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        return ContentUris.parseId(locationUri);
+    }
+
+    private ContentValues[] createLocationValues(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues location = new ContentValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, "bulk" + i);
+            location.put(LocationEntry.COLUMN_CITY_NAME, "City " + i);
+            location.put(LocationEntry.COLUMN_COORD_LAT, -90 + (i % 180));
+            location.put(LocationEntry.COLUMN_COORD_LONG, -180 + (i % 360));
+            values[i] = location;
+        }
+        return values;
+    }
+
+    private ContentValues[] createWeatherValues(long locationId, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues weather = TestUtilities.createWeatherValues(locationId);
+            weather.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * DateUtils.DAY_IN_MILLIS);
+            values[i] = weather;
+        }
+        return values;
+    }
+
+    private void clearWeather() {
+        // Through the provider, which forgets the queries it cached
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private void clearLocations() {
+        // Through the provider, which forgets the location IDs and queries it cached
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Keeps several threads issuing the weather-for-a-location query while another bulk inserts
+    forecasts, once with the rollback journal and once with write-ahead logging, and reports
+    how long the readers waited.  Runs on its own database file so the app's data is untouched.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final String STRESS_DATABASE_NAME = "weather_stress.db";
+    private static final int READERS = 3;
+    private static final int BATCHES = 20;
+    private static final int ROWS_PER_BATCH = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(STRESS_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(STRESS_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLoggingEnabled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, STRESS_DATABASE_NAME, true);
+        Cursor cursor = helper.getWritableDatabase().rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase());
+        cursor.close();
+        helper.close();
+    }
+
+    public void testReaderLatencyDuringBulkInsert() throws Exception {
+        long[] rollbackJournal = runStress(false);
+        mContext.deleteDatabase(STRESS_DATABASE_NAME);
+        long[] writeAheadLog = runStress(true);
+
+        Log.d(LOG_TAG, "Reader latency while bulk inserting, rollback journal: "
+                + percentiles(rollbackJournal) + "; write-ahead log: "
+                + percentiles(writeAheadLog));
+        assertTrue(rollbackJournal.length > 0);
+        assertTrue(writeAheadLog.length > 0);
+    }
+
+    /**
+     * @return the latency of every read, in microseconds, sorted
+     */
+    private long[] runStress(boolean writeAheadLogging) throws Exception {
+        final WeatherDbHelper helper =
+                new WeatherDbHelper(mContext, STRESS_DATABASE_NAME, writeAheadLogging);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final long locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        final String[] selectionArgs =
+                {TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE)};
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+        final long[][] latencies = new long[READERS][];
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] samples = new long[1024];
+                    int count = 0;
+                    while (writing.get()) {
+                        long start = System.nanoTime();
+                        // The query behind WEATHER_WITH_LOCATION with a start date
+                        Cursor cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder
+                                .query(db, null,
+                                        WeatherProvider.sLocationSettingWithStartDateSelection,
+                                        selectionArgs, null, null,
+                                        WeatherEntry.COLUMN_DATE + " ASC");
+                        cursor.getCount();
+                        cursor.close();
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, count * 2);
+                        }
+                        samples[count++] = (System.nanoTime() - start) / 1000;
+                    }
+                    latencies[reader] = Arrays.copyOf(samples, count);
+                    readersDone.countDown();
+                }
+            }, "StressReader-" + r);
+            readers[r].start();
+        }
+
+        ContentValues[] rows = new ContentValues[ROWS_PER_BATCH];
+        for (int i = 0; i < ROWS_PER_BATCH; i++) {
+            rows[i] = TestUtilities.createWeatherValues(locationId);
+            rows[i].put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * DateUtils.DAY_IN_MILLIS);
+        }
+        try {
+            for (int batch = 0; batch < BATCHES; batch++) {
+                // The same days every time, replacing the last batch, as a resync would
+                BulkInserter inserter = new BulkInserter(db, WeatherEntry.TABLE_NAME);
+                db.beginTransaction();
+                try {
+                    for (ContentValues row : rows) {
+                        inserter.insert(row);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    inserter.close();
+                }
+            }
+        } finally {
+            writing.set(false);
+        }
+        readersDone.await();
+        helper.close();
+
+        int total = 0;
+        for (long[] samples : latencies) {
+            total += samples.length;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (long[] samples : latencies) {
+            System.arraycopy(samples, 0, all, offset, samples.length);
+            offset += samples.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private String percentiles(long[] sorted) {
+        if (sorted.length == 0) {
+            return "no reads";
+        }
+        return sorted.length + " reads, p50 " + percentile(sorted, 50) + "us, p95 "
+                + percentile(sorted, 95) + "us, p99 " + percentile(sorted, 99) + "us, max "
+                + sorted[sorted.length - 1] + "us";
+    }
+
+    private long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Builds a populated database at every schema version the app has shipped, opens it with the
+    current WeatherDbHelper, and checks that the forecasts survived and the schema came out the
+    same as a new install's.  Also times the upgrade of a large weather table.  Runs on its own
+    database files so the app's data is untouched.
+ */
+public class TestDbUpgrade extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbUpgrade.class.getSimpleName();
+
+    private static final String UPGRADE_DATABASE_NAME = "weather_upgrade.db";
+    private static final String FRESH_DATABASE_NAME = "weather_fresh.db";
+
+    private static final int LOCATIONS = 3;
+    private static final int DAYS = 14;
+    private static final int LARGE_LOCATIONS = 20;
+    private static final int LARGE_DAYS = 2500;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(UPGRADE_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(UPGRADE_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testEveryVersionHasAStep() {
+        assertEquals("Error: DATABASE_VERSION changed without a step in WeatherDbMigrations",
+                WeatherDbHelper.DATABASE_VERSION, WeatherDbMigrations.getLatestVersion());
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        WeatherDbHelper freshHelper = new WeatherDbHelper(mContext, FRESH_DATABASE_NAME, true);
+        String freshSchema = describeSchema(freshHelper.getReadableDatabase());
+        freshHelper.close();
+
+        for (int version = WeatherDbMigrations.OLDEST_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            mContext.deleteDatabase(UPGRADE_DATABASE_NAME);
+            createDatabase(version, LOCATIONS, DAYS);
+
+            long start = SystemClock.elapsedRealtime();
+            WeatherDbHelper helper = new WeatherDbHelper(mContext, UPGRADE_DATABASE_NAME, true);
+            SQLiteDatabase db = helper.getWritableDatabase();
+            Log.d(LOG_TAG, "Upgraded version " + version + " in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+
+            String from = "Error: Upgrading from version " + version + ": ";
+            assertEquals(from + "wrong version", WeatherDbHelper.DATABASE_VERSION,
+                    db.getVersion());
+            assertEquals(from + "locations lost", LOCATIONS,
+                    DatabaseUtils.queryNumEntries(db, LocationEntry.TABLE_NAME));
+            assertEquals(from + "forecasts lost", LOCATIONS * DAYS,
+                    DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+            if (version >= 4) {
+                assertEquals(from + "sync log lost", 1,
+                        DatabaseUtils.queryNumEntries(db, SyncLogEntry.TABLE_NAME));
+            }
+            assertEquals(from + "schema differs from a new install's",
+                    freshSchema, describeSchema(db));
+
+            // Still reachable the way the app reads them, and new days still replace old ones
+            Cursor cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(db,
+                    new String[]{LocationEntry.COLUMN_CITY_NAME, WeatherEntry.COLUMN_DATE},
+                    WeatherProvider.sLocationSettingSelection, new String[]{locationSetting(0)},
+                    null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            assertEquals(from + "forecast query", DAYS, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("City 0", cursor.getString(0));
+            assertEquals(date(0), cursor.getLong(1));
+            cursor.close();
+            ContentValues sameDay = TestUtilities.createWeatherValues(locationId(db, 0));
+            sameDay.put(WeatherEntry.COLUMN_DATE, date(0));
+            db.insert(WeatherEntry.TABLE_NAME, null, sameDay);
+            assertEquals(from + "day added instead of replaced", LOCATIONS * DAYS,
+                    DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+
+            helper.close();
+        }
+    }
+
+    public void testUpgradeLargeTable() {
+        createDatabase(WeatherDbMigrations.OLDEST_VERSION, LARGE_LOCATIONS, LARGE_DAYS);
+
+        long start = SystemClock.elapsedRealtime();
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, UPGRADE_DATABASE_NAME, true);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "Upgraded " + (LARGE_LOCATIONS * LARGE_DAYS) + " forecast days from version "
+                + WeatherDbMigrations.OLDEST_VERSION + " in " + elapsed + "ms");
+
+        assertEquals(LARGE_LOCATIONS * LARGE_DAYS,
+                DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        helper.close();
+    }
+
+    public void testTooOldStartsOver() {
+        createDatabase(WeatherDbMigrations.OLDEST_VERSION, LOCATIONS, DAYS);
+        SQLiteDatabase old = mContext.openOrCreateDatabase(UPGRADE_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        old.setVersion(WeatherDbMigrations.OLDEST_VERSION - 1);
+        old.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, UPGRADE_DATABASE_NAME, true);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        helper.close();
+    }
+
+    /**
+     * Writes a database as the app would have left it at version, with forecasts for
+     * locations, and a sync logged if the version has the sync log.
+     */
+    private void createDatabase(int version, int locations, int days) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(UPGRADE_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        db.beginTransaction();
+        try {
+            // The schema of the first version, from before there were steps
+            db.execSQL("CREATE TABLE location (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "location_setting TEXT UNIQUE NOT NULL, " +
+                    "city_name TEXT NOT NULL, " +
+                    "coord_lat REAL NOT NULL, " +
+                    "coord_long REAL NOT NULL " +
+                    " );");
+            db.execSQL("CREATE TABLE weather (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "location_id INTEGER NOT NULL, " +
+                    "date INTEGER NOT NULL, " +
+                    "short_desc TEXT NOT NULL, " +
+                    "weather_id INTEGER NOT NULL," +
+                    "min REAL NOT NULL, " +
+                    "max REAL NOT NULL, " +
+                    "humidity REAL NOT NULL, " +
+                    "pressure REAL NOT NULL, " +
+                    "wind REAL NOT NULL, " +
+                    "degrees REAL NOT NULL, " +
+                    " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                    " UNIQUE (date, location_id) ON CONFLICT REPLACE);");
+            WeatherDbMigrations.migrate(db, WeatherDbMigrations.OLDEST_VERSION, version);
+
+            // Only the columns every version has
+            SQLiteStatement location = db.compileStatement("INSERT INTO location "
+                    + "(location_setting, city_name, coord_lat, coord_long) VALUES (?, ?, ?, ?)");
+            SQLiteStatement weather = db.compileStatement("INSERT INTO weather "
+                    + "(location_id, date, short_desc, weather_id, min, max, humidity, pressure, "
+                    + "wind, degrees) VALUES (?, ?, 'Clear', 800, 10, 20, 50, 1000, 3, 180)");
+            for (int i = 0; i < locations; i++) {
+                location.bindString(1, locationSetting(i));
+                location.bindString(2, "City " + i);
+                location.bindDouble(3, i % 90);
+                location.bindDouble(4, i % 180);
+                long locationId = location.executeInsert();
+                for (int day = 0; day < days; day++) {
+                    weather.bindLong(1, locationId);
+                    weather.bindLong(2, date(day));
+                    weather.executeInsert();
+                }
+            }
+            location.close();
+            weather.close();
+
+            if (version >= 4) {
+                db.execSQL("INSERT INTO sync_log (start, location_setting, response_code, "
+                        + "wire_bytes, decoded_bytes, compressed, metered, connect_ms, ttfb_ms, "
+                        + "transfer_ms) VALUES (0, '" + locationSetting(0)
+                        + "', 200, 1000, 4000, 1, 0, 50, 100, 20)");
+            }
+            db.setVersion(version);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+    }
+
+    private static String locationSetting(int i) {
+        return i == 0 ? TestUtilities.TEST_LOCATION : "upgrade" + i;
+    }
+
+    private static long date(int day) {
+        return WeatherContract.normalizeDate(TestUtilities.TEST_DATE) + day * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private static long locationId(SQLiteDatabase db, int i) {
+        return DatabaseUtils.longForQuery(db, "SELECT _id FROM location WHERE location_setting = ?",
+                new String[]{locationSetting(i)});
+    }
+
+    /**
+     * @return every table's columns, in order, and indexes, in a form two databases can be
+     * compared by
+     */
+    private static String describeSchema(SQLiteDatabase db) {
+        StringBuilder schema = new StringBuilder();
+        Cursor tables = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' "
+                + "AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata' ORDER BY name", null);
+        while (tables.moveToNext()) {
+            String table = tables.getString(0);
+            schema.append(table).append(" (");
+            Cursor columns = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            while (columns.moveToNext()) {
+                schema.append(columns.getString(columns.getColumnIndex("name"))).append(' ')
+                        .append(columns.getString(columns.getColumnIndex("type")))
+                        .append(columns.getInt(columns.getColumnIndex("notnull")) != 0
+                                ? " NOT NULL" : "")
+                        .append(columns.getInt(columns.getColumnIndex("pk")) != 0
+                                ? " PRIMARY KEY" : "")
+                        .append(", ");
+            }
+            columns.close();
+
+            // By what they cover, as the implicit ones are named after the table they were
+            // created with
+            List<String> indexes = new ArrayList<String>();
+            Cursor indexList = db.rawQuery("PRAGMA index_list(" + table + ")", null);
+            while (indexList.moveToNext()) {
+                String name = indexList.getString(indexList.getColumnIndex("name"));
+                StringBuilder index = new StringBuilder(
+                        indexList.getInt(indexList.getColumnIndex("unique")) != 0
+                                ? "UNIQUE INDEX (" : "INDEX (");
+                Cursor indexInfo = db.rawQuery("PRAGMA index_info(" + name + ")", null);
+                while (indexInfo.moveToNext()) {
+                    index.append(indexInfo.getString(indexInfo.getColumnIndex("name")))
+                            .append(' ');
+                }
+                indexInfo.close();
+                indexes.add(index.append(')').toString());
+            }
+            indexList.close();
+            Collections.sort(indexes);
+            schema.append(indexes).append(")\n");
+        }
+        tables.close();
+        return schema.toString();
+    }
+}
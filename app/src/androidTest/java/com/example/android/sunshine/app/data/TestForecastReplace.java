@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that bulk inserting into weather/[location]?date=[start] writes the new days and
+    deletes the location's days before start together, with one notification, and leaves other
+    locations alone.
+ */
+public class TestForecastReplace extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "10001";
+    private static final long START_DATE = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+
+    private long mLocationId;
+    private long mOtherLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        mLocationId = insertLocation(TestUtilities.createNorthPoleLocationValues());
+        ContentValues other = TestUtilities.createNorthPoleLocationValues();
+        other.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mOtherLocationId = insertLocation(other);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        super.tearDown();
+    }
+
+    public void testReplaceUpsertsAndPrunes() {
+        // Two expired days and two current ones, plus an expired day somewhere else
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{
+                createDay(mLocationId, -2, 70),
+                createDay(mLocationId, -1, 70),
+                createDay(mLocationId, 0, 70),
+                createDay(mLocationId, 1, 70),
+                createDay(mOtherLocationId, -1, 70)
+        });
+
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+        int inserted = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        START_DATE),
+                new ContentValues[]{
+                        createDay(mLocationId, 1, 80),
+                        createDay(mLocationId, 2, 80),
+                        createDay(mLocationId, 3, 80)
+                });
+        int changes = observer.waitForNotificationsAndCount();
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        assertEquals(3, inserted);
+        assertEquals("Error: Replacing a forecast notified more than once", 1, changes);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: Expired days not pruned, or new days missing", 4, cursor.getCount());
+        int[] expectedHigh = {70, 80, 80, 80};
+        for (int day = 0; day < expectedHigh.length; day++) {
+            assertTrue(cursor.moveToPosition(day));
+            assertEquals(START_DATE + day * DateUtils.DAY_IN_MILLIS, cursor.getLong(0));
+            assertEquals("Error: Day " + day + " not replaced", expectedHigh[day], cursor.getInt(1));
+        }
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(OTHER_LOCATION), null, null, null, null);
+        assertEquals("Error: Another location's days were pruned", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testReplaceWithNoNewDaysStillPrunes() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{
+                createDay(mLocationId, -1, 70),
+                createDay(mLocationId, 0, 70)
+        });
+
+        int inserted = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        START_DATE),
+                new ContentValues[0]);
+
+        assertEquals(0, inserted);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: Expired day not pruned", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    private ContentValues createDay(long locationId, int dayOffset, int high) {
+        ContentValues values = TestUtilities.createWeatherValues(locationId);
+        values.put(WeatherEntry.COLUMN_DATE, START_DATE + dayOffset * DateUtils.DAY_IN_MILLIS);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+        return values;
+    }
+
+    private long insertLocation(ContentValues values) {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        return ContentUris.parseId(locationUri);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.common.JulianDay;
+
+import java.util.TimeZone;
+
+/*
+    Checks that the JulianDay based normalizeDate stores the same dates the android.text.format.Time
+    version did, and compares what each costs.  JulianDay's own tests across zones and DST
+    transitions run on the host, in the common module.
+ */
+public class TestNormalizeDate extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestNormalizeDate.class.getSimpleName();
+
+    // Zones whose clocks change away from midnight, where both versions agree on every day.  Where
+    // midnight itself is skipped Time's answer depends on the platform version.
+    private static final String[] ZONES = {
+            "UTC", "America/New_York", "America/Los_Angeles", "Europe/London", "Europe/Berlin",
+            "Asia/Kolkata", "Asia/Tokyo", "Australia/Sydney", "Pacific/Auckland"
+    };
+
+    private static final long FROM = 1388534400000L;  // January 1st, 2014 UTC
+    private static final long TO = FROM + 3 * 365 * DateUtils.DAY_IN_MILLIS;
+    private static final long STEP = 97 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final int BENCHMARK_WARMUP = 1000;
+    private static final int BENCHMARK_ITERATIONS = 20000;
+
+    public void testMatchesTime() {
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            for (long millis = FROM; millis < TO; millis += STEP) {
+                assertEquals("Error: Normalized date differs from Time's in " + id + " at " + millis,
+                        normalizeWithTime(millis, id),
+                        WeatherContract.normalizeDate(millis, zone));
+            }
+        }
+    }
+
+    public void testDefaultZone() {
+        long now = System.currentTimeMillis();
+        assertEquals("Error: normalizeDate should use the default zone",
+                JulianDay.normalize(now, TimeZone.getDefault()),
+                WeatherContract.normalizeDate(now));
+    }
+
+    /*
+        Not a pass/fail test: logs the latency and allocation of normalizing a sync's worth of
+        dates both ways, so the numbers can be compared across devices.  Run with
+        adb logcat -s TestNormalizeDate
+     */
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkAgainstTime() {
+        String id = TimeZone.getDefault().getID();
+        TimeZone zone = TimeZone.getDefault();
+        long sink = 0;
+
+        for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+            sink += normalizeWithTime(FROM + i * STEP, id);
+            sink += WeatherContract.normalizeDate(FROM + i * STEP, zone);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            sink += normalizeWithTime(FROM + i * STEP, id);
+        }
+        long timeNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int timeAllocs = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            sink += WeatherContract.normalizeDate(FROM + i * STEP, zone);
+        }
+        long julianDayNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int julianDayAllocs = Debug.getThreadAllocCount();
+
+        Log.i(LOG_TAG, String.format("%s, per date: Time %d ns / %d objects, "
+                        + "JulianDay %d ns / %d objects (%d)",
+                id,
+                timeNanos / BENCHMARK_ITERATIONS,
+                timeAllocs / BENCHMARK_ITERATIONS,
+                julianDayNanos / BENCHMARK_ITERATIONS,
+                julianDayAllocs / BENCHMARK_ITERATIONS,
+                sink));
+    }
+
+    /*
+        What WeatherContract.normalizeDate used to do, for a given zone rather than the default.
+        Kept here as the reference implementation.
+     */
+    @SuppressWarnings("deprecation")
+    static long normalizeWithTime(long startDate, String timezone) {
+        Time time = new Time(timezone);
+        time.set(startDate);
+        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
+}
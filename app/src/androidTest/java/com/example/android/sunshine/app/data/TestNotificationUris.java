@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that writing weather notifies observers of the days and locations written, the way
+    the forecast list and detail cursors observe them, and leaves everyone else alone.
+ */
+public class TestNotificationUris extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "10001";
+    private static final long DAY_ONE = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+    private static final long DAY_TWO = DAY_ONE + DateUtils.DAY_IN_MILLIS;
+
+    private long mLocationId;
+
+    private TestUtilities.TestContentObserver mListObserver;
+    private TestUtilities.TestContentObserver mDayOneObserver;
+    private TestUtilities.TestContentObserver mDayTwoObserver;
+    private TestUtilities.TestContentObserver mOtherLocationObserver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationId = ContentUris.parseId(locationUri);
+        ContentValues other = TestUtilities.createNorthPoleLocationValues();
+        other.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, other);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mListObserver != null) {
+            for (TestUtilities.TestContentObserver observer :
+                    new TestUtilities.TestContentObserver[]{mListObserver, mDayOneObserver,
+                            mDayTwoObserver, mOtherLocationObserver}) {
+                mContext.getContentResolver().unregisterContentObserver(observer);
+                observer.mHT.quit();
+            }
+        }
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        super.tearDown();
+    }
+
+    public void testInsertNotifiesItsDay() {
+        registerObservers();
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, createDay(DAY_ONE, 70));
+
+        assertEquals(1, mDayOneObserver.waitForNotificationsAndCount());
+        assertEquals("Error: Forecast list not notified", 1, mListObserver.mChangeCount);
+        assertEquals("Error: Another day was notified", 0, mDayTwoObserver.mChangeCount);
+        assertEquals("Error: Another location was notified",
+                0, mOtherLocationObserver.mChangeCount);
+    }
+
+    public void testUpdateNotifiesItsDay() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{createDay(DAY_ONE, 70), createDay(DAY_TWO, 70)});
+        registerObservers();
+
+        ContentValues hotter = new ContentValues();
+        hotter.put(WeatherEntry.COLUMN_MAX_TEMP, 90);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, hotter,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(DAY_TWO)});
+
+        assertEquals(1, mDayTwoObserver.waitForNotificationsAndCount());
+        assertEquals("Error: Forecast list not notified", 1, mListObserver.mChangeCount);
+        assertEquals("Error: Another day was notified", 0, mDayOneObserver.mChangeCount);
+        assertEquals("Error: Another location was notified",
+                0, mOtherLocationObserver.mChangeCount);
+    }
+
+    public void testSeveralDaysNotifyLocationOnce() {
+        registerObservers();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{createDay(DAY_ONE, 70), createDay(DAY_TWO, 70)});
+
+        assertEquals("Error: Forecast list not notified once",
+                1, mListObserver.waitForNotificationsAndCount());
+        assertEquals("Error: Another location was notified",
+                0, mOtherLocationObserver.mChangeCount);
+    }
+
+    private void registerObservers() {
+        // Registered the way a cursor registers its notification URI
+        mListObserver = observe(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, DAY_ONE));
+        mDayOneObserver = observe(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, DAY_ONE));
+        mDayTwoObserver = observe(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, DAY_TWO));
+        mOtherLocationObserver = observe(WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+    }
+
+    private TestUtilities.TestContentObserver observe(Uri uri) {
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    private ContentValues createDay(long date, int high) {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationId);
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+        return values;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that repeating a provider query is answered from the cache, with a cursor of its own,
+    and that a write through the provider drops exactly the cached queries reading that table.
+ */
+public class TestQueryCache extends AndroidTestCase {
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            LocationEntry.COLUMN_CITY_NAME
+    };
+    // these indices must match the projection
+    private static final int COL_DATE = 1;
+    private static final int COL_CITY_NAME = 3;
+
+    private static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private ContentProviderClient mClient;
+    private QueryCache mCache;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        mClient = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mCache = ((WeatherProvider) mClient.getLocalContentProvider()).getQueryCache();
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(mLocationId));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mClient.release();
+        super.tearDown();
+    }
+
+    public void testRepeatedQueryHits() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        Cursor first = queryForecast(FORECAST_COLUMNS, SORT_BY_DATE);
+        long hits = mCache.getHitCount();
+        long misses = mCache.getMissCount();
+        Cursor second = queryForecast(FORECAST_COLUMNS, SORT_BY_DATE);
+        assertEquals("Error: Repeated query missed the cache", hits + 1, mCache.getHitCount());
+        assertEquals(misses, mCache.getMissCount());
+
+        // Each caller gets its own cursor
+        assertTrue(first.moveToFirst());
+        first.close();
+        assertTrue("Error: Closing one cached cursor affected another", second.moveToFirst());
+        assertEquals(WeatherContract.normalizeDate(TestUtilities.TEST_DATE),
+                second.getLong(COL_DATE));
+        assertEquals("North Pole", second.getString(COL_CITY_NAME));
+        second.close();
+    }
+
+    public void testProjectionAndSortOrderAreKeys() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        queryForecast(FORECAST_COLUMNS, SORT_BY_DATE).close();
+        long hits = mCache.getHitCount();
+        queryForecast(FORECAST_COLUMNS, WeatherEntry.COLUMN_DATE + " DESC").close();
+        queryForecast(new String[]{WeatherEntry.COLUMN_DATE}, SORT_BY_DATE).close();
+        assertEquals("Error: Different queries shared a cached result",
+                hits, mCache.getHitCount());
+    }
+
+    public void testWeatherWriteInvalidates() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        queryForecast(FORECAST_COLUMNS, SORT_BY_DATE).close();
+        ContentValues tomorrow = TestUtilities.createWeatherValues(mLocationId);
+        tomorrow.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + DateUtils.DAY_IN_MILLIS);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{tomorrow});
+
+        long hits = mCache.getHitCount();
+        Cursor cursor = queryForecast(FORECAST_COLUMNS, SORT_BY_DATE);
+        assertEquals("Error: Query answered from the cache after a weather insert",
+                hits, mCache.getHitCount());
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testLocationWriteInvalidatesJoin() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        queryForecast(FORECAST_COLUMNS, SORT_BY_DATE).close();
+        ContentValues rename = new ContentValues();
+        rename.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, rename,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mLocationId)});
+
+        Cursor cursor = queryForecast(FORECAST_COLUMNS, SORT_BY_DATE);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: Stale city name from the cache",
+                "Santa's Village", cursor.getString(COL_CITY_NAME));
+        cursor.close();
+    }
+
+    public void testUnrelatedWriteKeepsEntries() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null, null, null, null)
+                .close();
+        ContentValues tomorrow = TestUtilities.createWeatherValues(mLocationId);
+        tomorrow.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + DateUtils.DAY_IN_MILLIS);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, tomorrow);
+
+        long hits = mCache.getHitCount();
+        mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null, null, null, null)
+                .close();
+        assertEquals("Error: A weather insert dropped a cached location query",
+                hits + 1, mCache.getHitCount());
+    }
+
+    private Cursor queryForecast(String[] projection, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                projection, null, null, sortOrder);
+        assertNotNull(cursor);
+        return cursor;
+    }
+}
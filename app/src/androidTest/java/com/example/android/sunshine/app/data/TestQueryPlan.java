@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs the queries the app depends on through EXPLAIN QUERY PLAN, and checks that SQLite finds
+    the rows through an index instead of scanning the table, so a schema change can't quietly
+    bring the scans back.
+ */
+public class TestQueryPlan extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlan.class.getSimpleName();
+
+    private static final String[] ARGS_LOCATION = {TestUtilities.TEST_LOCATION};
+    private static final String[] ARGS_LOCATION_AND_DATE =
+            {TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE)};
+    private static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testWeatherByLocationSetting() {
+        String sql = WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingSelection, null, null, SORT_BY_DATE, null);
+        assertIndexedAndOrdered(explain(sql, ARGS_LOCATION));
+    }
+
+    public void testWeatherByLocationSettingWithStartDate() {
+        String sql = WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingWithStartDateSelection, null, null, SORT_BY_DATE,
+                null);
+        assertIndexedAndOrdered(explain(sql, ARGS_LOCATION_AND_DATE));
+    }
+
+    public void testWeatherByLocationSettingAndDate() {
+        String sql = WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingAndDaySelection, null, null, null, null);
+        assertIndexed(explain(sql, ARGS_LOCATION_AND_DATE));
+    }
+
+    public void testStoredDaysForDiff() {
+        // What ForecastDiff reads back before a sync writes
+        String sql = "SELECT * FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?";
+        assertIndexed(explain(sql, new String[]{"1", Long.toString(TestUtilities.TEST_DATE)}));
+    }
+
+    public void testPruneOldDays() {
+        // The rows the post-sync delete removes, across all locations
+        String sql = "SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_DATE + " <= ?";
+        assertIndexed(explain(sql, new String[]{Long.toString(TestUtilities.TEST_DATE)}));
+    }
+
+    public void testLocationBySetting() {
+        String sql = "SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME
+                + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+        assertIndexed(explain(sql, ARGS_LOCATION));
+    }
+
+    /**
+     * @return the detail column of each step of the plan
+     */
+    private List<String> explain(String sql, String[] args) {
+        List<String> plan = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            plan.add(cursor.getString(detailIndex));
+        }
+        cursor.close();
+        Log.d(LOG_TAG, sql + "\n    " + plan);
+        assertFalse("Error: No plan for " + sql, plan.isEmpty());
+        return plan;
+    }
+
+    private void assertIndexed(List<String> plan) {
+        for (String step : plan) {
+            // "SCAN TABLE weather" on older SQLite, "SCAN weather" on newer; an index shows up
+            // as "SEARCH ... USING [COVERING] INDEX" either way
+            if (step.startsWith("SCAN")) {
+                assertTrue("Error: Full table scan in " + plan, step.contains("INDEX"));
+            }
+        }
+    }
+
+    private void assertIndexedAndOrdered(List<String> plan) {
+        assertIndexed(plan);
+        for (String step : plan) {
+            assertFalse("Error: Rows sorted after the fact in " + plan,
+                    step.contains("TEMP B-TREE"));
+        }
+    }
+}
@@ -23,10 +23,14 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.Set;
 
@@ -111,6 +115,67 @@ public class TestUtilities extends AndroidTestCase {
         return locationRowId;
     }
 
+    /*
+        Deletes all records from both database tables using the ContentProvider, and queries it
+        to make sure they're gone.  Going through the provider also drops its cached queries and
+        location IDs, which deleting from the database directly would leave stale.
+     */
+    public static void deleteAllRecordsFromProvider(Context context) {
+        context.getContentResolver().delete(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null
+        );
+        context.getContentResolver().delete(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                null,
+                null
+        );
+
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: Records not deleted from Weather table during delete", 0, cursor.getCount());
+        cursor.close();
+
+        cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: Records not deleted from Location table during delete", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Reads a file from androidTest/assets, such as a recorded OWM response.  The context must
+        be the test package's, getInstrumentation().getContext(), not the app's.
+     */
+    public static byte[] readAsset(Context testContext, String name) throws IOException {
+        InputStream in = testContext.getAssets().open(name);
+        try {
+            return readStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static byte[] readStream(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
     /*
         Students: The functions we provide inside of TestProvider use this utility class to test
         the ContentObserver callbacks using the PollingCheck class that we grabbed from the Android
@@ -122,6 +187,7 @@ public class TestUtilities extends AndroidTestCase {
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
         boolean mContentChanged;
+        volatile int mChangeCount;
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -142,6 +208,7 @@ public class TestUtilities extends AndroidTestCase {
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
+            mChangeCount++;
             mContentChanged = true;
         }
 
@@ -158,6 +225,24 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        /**
+         * Waits for a notification like waitForNotificationOrFail, then a while longer for any
+         * that follow it.
+         *
+         * @return how many notifications arrived
+         */
+        public int waitForNotificationsAndCount() {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mContentChanged;
+                }
+            }.run();
+            SystemClock.sleep(500);
+            mHT.quit();
+            return mChangeCount;
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
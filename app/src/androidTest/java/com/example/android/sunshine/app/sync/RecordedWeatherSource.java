@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+
+/**
+ * Serves forecasts recorded to files instead of going to the network, so the whole ingest and
+ * fanout pipeline can be benchmarked and regression tested deterministically.
+ *
+ * Each location has a body file, forecast_&lt;location&gt;.json, and optionally a properties file,
+ * forecast_&lt;location&gt;.properties, with the response code, validators and timings it was
+ * recorded with.  Recordings are made by wrapping a live source with {@link #recordFrom}, and
+ * replayed with their recorded timings divided by the speedup.  On top of that, latency,
+ * truncation and error codes can be forced to exercise the failure paths.
+ */
+class RecordedWeatherSource implements WeatherSource {
+    private static final String BODY_PREFIX = "forecast_";
+    private static final String BODY_SUFFIX = ".json";
+    private static final String META_SUFFIX = ".properties";
+
+    // Keys of the properties file
+    private static final String META_CODE = "code";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last_modified";
+    private static final String META_TTFB_MS = "ttfb_ms";
+    private static final String META_TRANSFER_MS = "transfer_ms";
+
+    private final File mDirectory;
+
+    private volatile float mSpeedup = 1f;
+    private volatile long mLatencyMs = -1;
+    private volatile long mTruncateAfter = -1;
+    private volatile int mResponseCode;
+
+    /**
+     * @param directory where the recorded responses are stored
+     */
+    RecordedWeatherSource(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Replays recorded timings this many times faster.  0 replays with no delay at all.
+     */
+    void setSpeedup(float speedup) {
+        mSpeedup = speedup;
+    }
+
+    /**
+     * Waits this long before answering, whatever the recording says.  -1 goes back to the
+     * recorded time to first byte.
+     */
+    void setLatencyMs(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * Ends every body after this many bytes, as a dropped connection would.  -1 serves bodies
+     * whole.
+     */
+    void setTruncateAfter(long bytes) {
+        mTruncateAfter = bytes;
+    }
+
+    /**
+     * Answers every fetch with this HTTP code instead of the recorded one.  0 goes back to the
+     * recorded code.
+     */
+    void setResponseCode(int responseCode) {
+        mResponseCode = responseCode;
+    }
+
+    @Override
+    public Response fetch(String locationQuery, String etag, String lastModified,
+                          SyncDeadline deadline, final SyncStats stats) throws IOException {
+        long requestStart = SystemClock.elapsedRealtime();
+        File bodyFile = new File(mDirectory, fileName(locationQuery, BODY_SUFFIX));
+        Properties meta = readMeta(new File(mDirectory, fileName(locationQuery, META_SUFFIX)));
+
+        long ttfbMs = mLatencyMs >= 0 ? mLatencyMs : scale(getLong(meta, META_TTFB_MS));
+        sleep(ttfbMs, deadline);
+
+        int code = mResponseCode != 0 ? mResponseCode
+                : (int) getLong(meta, META_CODE, HttpURLConnection.HTTP_OK);
+        stats.responseCode = code;
+        stats.ttfbMs = stats.endSpan(SyncStats.PHASE_RESPONSE, requestStart) - requestStart;
+
+        if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            // Same as HttpURLConnection.getInputStream for an error code
+            throw new IOException("Server returned HTTP response code: " + code);
+        }
+        if (!bodyFile.exists()) {
+            stats.responseCode = HttpURLConnection.HTTP_NOT_FOUND;
+            throw new FileNotFoundException("No recorded forecast for " + locationQuery);
+        }
+
+        String recordedEtag = meta.getProperty(META_ETAG);
+        String recordedLastModified = meta.getProperty(META_LAST_MODIFIED);
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED
+                || (etag != null && etag.equals(recordedEtag))
+                || (etag == null && lastModified != null
+                        && lastModified.equals(recordedLastModified))) {
+            stats.responseCode = HttpURLConnection.HTTP_NOT_MODIFIED;
+            return new Response(HttpURLConnection.HTTP_NOT_MODIFIED, null, null, null);
+        }
+
+        final ReplayInputStream body = new ReplayInputStream(new FileInputStream(bodyFile),
+                bodyFile.length(), scale(getLong(meta, META_TRANSFER_MS)), mTruncateAfter,
+                deadline);
+        return new Response(HttpURLConnection.HTTP_OK, body, recordedEtag, recordedLastModified) {
+            @Override
+            public void close() throws IOException {
+                stats.wireBytes = body.mPosition;
+                stats.decodedBytes = body.mPosition;
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps a live source so that every full forecast it serves is also recorded to directory,
+     * along with its validators and timings.
+     */
+    static WeatherSource recordFrom(final WeatherSource live, final File directory) {
+        return new WeatherSource() {
+            @Override
+            public Response fetch(String locationQuery, String etag, String lastModified,
+                                  SyncDeadline deadline, SyncStats stats) throws IOException {
+                long requestStart = SystemClock.elapsedRealtime();
+                final Response response =
+                        live.fetch(locationQuery, etag, lastModified, deadline, stats);
+                if (response.body == null) {
+                    return response;
+                }
+                final long bodyStart = SystemClock.elapsedRealtime();
+
+                final Properties meta = new Properties();
+                meta.setProperty(META_CODE, Integer.toString(response.code));
+                if (response.etag != null) {
+                    meta.setProperty(META_ETAG, response.etag);
+                }
+                if (response.lastModified != null) {
+                    meta.setProperty(META_LAST_MODIFIED, response.lastModified);
+                }
+                meta.setProperty(META_TTFB_MS, Long.toString(bodyStart - requestStart));
+
+                // Written next to the recording and only moved into place once the body was
+                // read to the end, so a failed fetch never replaces a good recording
+                final File bodyFile = new File(directory, fileName(locationQuery, BODY_SUFFIX));
+                final File partialFile = new File(directory, bodyFile.getName() + ".partial");
+                final File metaFile = new File(directory, fileName(locationQuery, META_SUFFIX));
+                final TeeInputStream tee =
+                        new TeeInputStream(response.body, new FileOutputStream(partialFile));
+
+                return new Response(response.code, tee, response.etag, response.lastModified) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            // The parser stops at the closing brace, read the rest of the body
+                            // so the recording ends where the response did
+                            byte[] rest = new byte[1024];
+                            while (tee.read(rest, 0, rest.length) != -1) {
+                                // keep copying
+                            }
+                        } finally {
+                            closeRecording();
+                        }
+                    }
+
+                    private void closeRecording() throws IOException {
+                        try {
+                            response.close();
+                        } finally {
+                            tee.mCopy.close();
+                            if (tee.mEnded) {
+                                meta.setProperty(META_TRANSFER_MS,
+                                        Long.toString(SystemClock.elapsedRealtime() - bodyStart));
+                                writeMeta(metaFile, meta);
+                                if (!partialFile.renameTo(bodyFile)) {
+                                    throw new IOException("Failed to record " + bodyFile);
+                                }
+                            } else {
+                                partialFile.delete();
+                            }
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    static String fileName(String locationQuery, String suffix) {
+        // Keep the name safe for the file system whatever the user typed
+        StringBuilder name = new StringBuilder(BODY_PREFIX);
+        for (int i = 0; i < locationQuery.length(); i++) {
+            char c = locationQuery.charAt(i);
+            name.append(Character.isLetterOrDigit(c) ? c : '_');
+        }
+        return name.append(suffix).toString();
+    }
+
+    private long scale(long recordedMs) {
+        if (mSpeedup <= 0) {
+            return 0;
+        }
+        return (long) (recordedMs / mSpeedup);
+    }
+
+    private static Properties readMeta(File metaFile) throws IOException {
+        Properties meta = new Properties();
+        if (metaFile.exists()) {
+            InputStream in = new FileInputStream(metaFile);
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return meta;
+    }
+
+    private static void writeMeta(File metaFile, Properties meta) throws IOException {
+        OutputStream out = new FileOutputStream(metaFile);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long getLong(Properties meta, String key) {
+        return getLong(meta, key, 0);
+    }
+
+    private static long getLong(Properties meta, String key, long defaultValue) {
+        String value = meta.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Waits as a slow server would make us wait, timing out like a socket at the deadline.
+     */
+    private static void sleep(long ms, SyncDeadline deadline) throws InterruptedIOException {
+        long remaining = deadline.remainingMs();
+        try {
+            if (ms > 0) {
+                Thread.sleep(Math.max(0, Math.min(ms, remaining)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying");
+        }
+        if (ms > remaining) {
+            throw new SocketTimeoutException("Replay timed out");
+        }
+    }
+
+    /**
+     * Spreads the body over the recorded transfer time and cuts it short if asked to.
+     */
+    private static class ReplayInputStream extends FilterInputStream {
+        private final long mLength;
+        private final long mTransferMs;
+        private final long mLimit;
+        private final SyncDeadline mDeadline;
+        private final long mStart = SystemClock.elapsedRealtime();
+        long mPosition;
+
+        ReplayInputStream(InputStream in, long length, long transferMs, long limit,
+                          SyncDeadline deadline) {
+            super(in);
+            mLength = length;
+            mTransferMs = transferMs;
+            mLimit = limit;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int result = read(single, 0, 1);
+            return result == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mLimit >= 0) {
+                if (mPosition >= mLimit) {
+                    return -1;
+                }
+                count = (int) Math.min(count, mLimit - mPosition);
+            }
+            int result = in.read(buffer, offset, count);
+            if (result != -1) {
+                mPosition += result;
+                if (mTransferMs > 0 && mLength > 0) {
+                    long due = mStart + mTransferMs * Math.min(mPosition, mLength) / mLength;
+                    sleep(due - SystemClock.elapsedRealtime(), mDeadline);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(byteCount, 4096)];
+            int result = read(skipped, 0, skipped.length);
+            return result == -1 ? 0 : result;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Copies everything read from a stream into another one.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        final OutputStream mCopy;
+        boolean mEnded;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            mCopy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = in.read();
+            if (result == -1) {
+                mEnded = true;
+            } else {
+                mCopy.write(result);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = in.read(buffer, offset, count);
+            if (result == -1) {
+                mEnded = true;
+            } else {
+                mCopy.write(buffer, offset, result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(byteCount, 4096)];
+            int result = read(skipped, 0, skipped.length);
+            return result == -1 ? 0 : result;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
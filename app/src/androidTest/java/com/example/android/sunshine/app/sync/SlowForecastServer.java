@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    A local HTTP server that serves one forecast body as slowly as it's told to: it can hold back
+    the response headers, and trickle the body out a few bytes at a time.  It can also keep
+    connections alive, and counts them, to check that clients reuse them.
+ */
+class SlowForecastServer {
+
+    private final byte[] mBody;
+    private final ServerSocket mServerSocket;
+    private final List<Socket> mClients = new ArrayList<Socket>();
+    private final Thread mAcceptThread;
+
+    private volatile long mHeaderDelayMs;
+    private volatile int mChunkBytes = 8192;
+    private volatile long mChunkDelayMs;
+    private volatile boolean mKeepAlive;
+    private volatile int mRequests;
+    private volatile int mConnections;
+
+    SlowForecastServer(byte[] body) throws IOException {
+        mBody = body;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "SlowForecastServer");
+        mAcceptThread.start();
+    }
+
+    /**
+     * @return the base URL to hand to OwmWeatherSource
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    /**
+     * Holds back the status line and headers this long.
+     */
+    void setHeaderDelayMs(long headerDelayMs) {
+        mHeaderDelayMs = headerDelayMs;
+    }
+
+    /**
+     * Sends the body chunkBytes at a time, waiting chunkDelayMs before each chunk.
+     */
+    void setTrickle(int chunkBytes, long chunkDelayMs) {
+        mChunkBytes = chunkBytes;
+        mChunkDelayMs = chunkDelayMs;
+    }
+
+    /**
+     * Serves further requests on a connection instead of closing it after the first.
+     */
+    void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    int getRequestCount() {
+        return mRequests;
+    }
+
+    int getConnectionCount() {
+        return mConnections;
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+        synchronized (mClients) {
+            for (Socket client : mClients) {
+                client.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            final Socket client;
+            try {
+                client = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (mClients) {
+                mClients.add(client);
+            }
+            mConnections++;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (IOException | InterruptedException e) {
+                        // The client gave up on us, which is what most tests want
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                }
+            }).start();
+        }
+    }
+
+    private void serve(Socket client) throws IOException, InterruptedException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), "US-ASCII"));
+        OutputStream out = client.getOutputStream();
+        boolean keepAlive;
+        do {
+            // Read the request up to the blank line ending its headers
+            String line = in.readLine();
+            if (line == null) {
+                // The client closed the connection
+                return;
+            }
+            while (line != null && line.length() > 0) {
+                // only the fact that a request came matters
+                line = in.readLine();
+            }
+            mRequests++;
+            keepAlive = mKeepAlive;
+
+            Thread.sleep(mHeaderDelayMs);
+            String headers = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/json; charset=utf-8\r\n"
+                    + "Content-Length: " + mBody.length + "\r\n"
+                    + (keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n")
+                    + "\r\n";
+            out.write(headers.getBytes("US-ASCII"));
+            out.flush();
+
+            for (int offset = 0; offset < mBody.length; offset += mChunkBytes) {
+                if (mChunkDelayMs > 0) {
+                    Thread.sleep(mChunkDelayMs);
+                }
+                out.write(mBody, offset, Math.min(mChunkBytes, mBody.length - offset));
+                out.flush();
+            }
+        } while (keepAlive);
+    }
+}
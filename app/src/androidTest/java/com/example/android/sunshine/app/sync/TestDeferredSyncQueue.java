@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.Utility;
+
+/*
+    Checks that sync requests made while offline collapse into one pending sync, which is
+    handed out once.
+ */
+public class TestDeferredSyncQueue extends AndroidTestCase {
+
+    private static final int REQUESTS = 5;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        DeferredSyncQueue.takePending(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DeferredSyncQueue.takePending(mContext);
+        super.tearDown();
+    }
+
+    public void testRequestsCollapse() {
+        assertFalse(DeferredSyncQueue.isPending(mContext));
+        for (int i = 0; i < REQUESTS; i++) {
+            DeferredSyncQueue.defer(mContext);
+        }
+        assertTrue(DeferredSyncQueue.isPending(mContext));
+        assertEquals(REQUESTS, DeferredSyncQueue.getPendingRequests(mContext));
+
+        assertEquals(REQUESTS, DeferredSyncQueue.takePending(mContext));
+        assertEquals("Error: Deferred sync was handed out twice",
+                0, DeferredSyncQueue.takePending(mContext));
+        assertFalse(DeferredSyncQueue.isPending(mContext));
+    }
+
+    public void testOnlineNotDeferred() {
+        if (!Utility.isNetworkAvailable(mContext)) {
+            // Only meaningful with a network
+            return;
+        }
+        assertFalse(DeferredSyncQueue.deferIfOffline(mContext));
+        assertFalse("Error: Request made online was queued", DeferredSyncQueue.isPending(mContext));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/*
+    Checks the streaming ForecastParser against recorded OWM responses (see androidTest/assets/owm)
+    and compares its cost against the StringBuffer + JSONObject parsing it replaced.
+ */
+public class TestForecastParser extends InstrumentationTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    static final String FORECAST_ASSET = "owm/forecast_94043.json";
+    static final String NOT_FOUND_ASSET = "owm/not_found.json";
+
+    private static final int BENCHMARK_WARMUP = 20;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    public void testParseRecordedForecast() throws Exception {
+        byte[] payload = TestUtilities.readAsset(getInstrumentation().getContext(), FORECAST_ASSET);
+
+        Forecast streamed = ForecastParser.parse(new ByteArrayInputStream(payload));
+        Forecast reference = parseWithJsonObject(new ByteArrayInputStream(payload));
+
+        assertEquals("Error: Wrong message code", 200, streamed.messageCode);
+        assertEquals("Error: Wrong city", reference.cityName, streamed.cityName);
+        assertEquals(reference.cityLatitude, streamed.cityLatitude);
+        assertEquals(reference.cityLongitude, streamed.cityLongitude);
+        assertEquals("Error: Wrong number of days", 14, streamed.days.size());
+
+        for (int i = 0; i < reference.days.size(); i++) {
+            ForecastDay expected = reference.days.get(i);
+            ForecastDay actual = streamed.days.get(i);
+            String error = "Error: Day " + i + " does not match the JSONObject parser";
+            assertEquals(error, expected.weatherId, actual.weatherId);
+            assertEquals(error, expected.description, actual.description);
+            assertEquals(error, expected.high, actual.high);
+            assertEquals(error, expected.low, actual.low);
+            assertEquals(error, expected.humidity, actual.humidity);
+            assertEquals(error, expected.pressure, actual.pressure);
+            assertEquals(error, expected.windSpeed, actual.windSpeed);
+            assertEquals(error, expected.windDirection, actual.windDirection);
+        }
+    }
+
+    public void testParseNotFound() throws Exception {
+        Forecast forecast = ForecastParser.parse(new ByteArrayInputStream(
+                TestUtilities.readAsset(getInstrumentation().getContext(), NOT_FOUND_ASSET)));
+        assertEquals("Error: 404 body should be reported through messageCode",
+                404, forecast.messageCode);
+        assertTrue(forecast.days.isEmpty());
+    }
+
+    public void testParseMalformed() throws Exception {
+        try {
+            ForecastParser.parse(new ByteArrayInputStream(
+                    "{\"cod\":\"200\",\"list\":[{\"temp\":".getBytes("UTF-8")));
+            fail("Error: Truncated body should not parse");
+        } catch (IOException e) {
+            // expected, the stream ended early
+        }
+        try {
+            ForecastParser.parse(new ByteArrayInputStream(
+                    "{\"cod\":\"200\",\"list\":[]}".getBytes("UTF-8")));
+            fail("Error: Body without a city should not parse");
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    public void testParseMissingDayField() throws Exception {
+        String recorded = new String(TestUtilities.readAsset(
+                getInstrumentation().getContext(), FORECAST_ASSET), "UTF-8");
+        for (String field : new String[]{"pressure", "humidity", "speed", "deg"}) {
+            JSONObject forecastJson = new JSONObject(recorded);
+            forecastJson.getJSONArray("list").getJSONObject(0).remove(field);
+            try {
+                ForecastParser.parse(new ByteArrayInputStream(
+                        forecastJson.toString().getBytes("UTF-8")));
+                fail("Error: Day without " + field + " should not parse");
+            } catch (JSONException e) {
+                // expected
+            }
+        }
+    }
+
+    /*
+        Not a pass/fail test: logs the allocation and latency of both parsers on the recorded
+        payload so the numbers can be compared across devices.  Run with
+        adb logcat -s TestForecastParser
+     */
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkAgainstJsonObject() throws Exception {
+        byte[] payload = TestUtilities.readAsset(getInstrumentation().getContext(), FORECAST_ASSET);
+
+        for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+            ForecastParser.parse(new ByteArrayInputStream(payload));
+            parseWithJsonObject(new ByteArrayInputStream(payload));
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            ForecastParser.parse(new ByteArrayInputStream(payload));
+        }
+        long streamingNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int streamingAllocs = Debug.getThreadAllocCount();
+        int streamingBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            parseWithJsonObject(new ByteArrayInputStream(payload));
+        }
+        long jsonObjectNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int jsonObjectAllocs = Debug.getThreadAllocCount();
+        int jsonObjectBytes = Debug.getThreadAllocSize();
+
+        Log.i(LOG_TAG, String.format("%d bytes payload, per parse: streaming %d us / %d objects / "
+                        + "%d bytes, JSONObject %d us / %d objects / %d bytes",
+                payload.length,
+                streamingNanos / BENCHMARK_ITERATIONS / 1000,
+                streamingAllocs / BENCHMARK_ITERATIONS,
+                streamingBytes / BENCHMARK_ITERATIONS,
+                jsonObjectNanos / BENCHMARK_ITERATIONS / 1000,
+                jsonObjectAllocs / BENCHMARK_ITERATIONS,
+                jsonObjectBytes / BENCHMARK_ITERATIONS));
+    }
+
+    /*
+        The parsing SunshineSyncAdapter used to do: read the whole body into a StringBuffer,
+        then build an org.json tree from it.  Kept here as the reference implementation.
+     */
+    static Forecast parseWithJsonObject(InputStream inputStream)
+            throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        Forecast forecast = new Forecast();
+        if (forecastJson.has("cod")) {
+            forecast.messageCode = forecastJson.getInt("cod");
+        }
+
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        forecast.cityName = cityJson.getString("name");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        forecast.cityLatitude = cityCoord.getDouble("lat");
+        forecast.cityLongitude = cityCoord.getDouble("lon");
+
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            ForecastDay day = new ForecastDay();
+            day.pressure = dayForecast.getDouble("pressure");
+            day.humidity = dayForecast.getInt("humidity");
+            day.windSpeed = dayForecast.getDouble("speed");
+            day.windDirection = dayForecast.getDouble("deg");
+
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            day.description = weatherObject.getString("main");
+            day.weatherId = weatherObject.getInt("id");
+
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+            day.high = temperatureObject.getDouble("max");
+            day.low = temperatureObject.getDouble("min");
+            forecast.days.add(day);
+        }
+        return forecast;
+    }
+}
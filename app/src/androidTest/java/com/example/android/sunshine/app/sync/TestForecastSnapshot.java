@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks that consumers read the forecast the sync published without querying the provider,
+    and only load it from the provider when nothing was published for the preferred location.
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "94043";
+    private static final int DAYS = 3;
+
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedLocation = prefs.getString(mContext.getString(R.string.pref_location_key), null);
+        prefs.edit().putString(mContext.getString(R.string.pref_location_key), TEST_LOCATION)
+                .commit();
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        ForecastSnapshot.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ForecastSnapshot.clear();
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mContext.getString(R.string.pref_location_key));
+        } else {
+            editor.putString(mContext.getString(R.string.pref_location_key), mSavedLocation);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    public void testPublishedForecastReadWithoutQuery() {
+        List<ForecastDay> days = createDays();
+        ForecastSnapshot.publish(TEST_LOCATION, createDates(0), days);
+
+        int loads = ForecastSnapshot.getProviderLoadCount();
+        ForecastSnapshot snapshot = ForecastSnapshot.getLatest(mContext);
+        assertEquals("Error: Published forecast was loaded from the provider again",
+                loads, ForecastSnapshot.getProviderLoadCount());
+        assertEquals(DAYS, snapshot.getCount());
+        assertEquals(todayNormalized(), snapshot.getDate(0));
+        for (int i = 0; i < DAYS; i++) {
+            assertTrue("Error: Day " + i + " differs from the published one",
+                    days.get(i).sameValues(snapshot.getDay(i)));
+        }
+    }
+
+    public void testColdProcessLoadsFromProvider() {
+        Uri locationUri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, createLocationValues());
+        long locationId = ContentUris.parseId(locationUri);
+        List<ForecastDay> days = createDays();
+        long[] dates = createDates(0);
+        ContentValues[] rows = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            rows[i] = days.get(i).toContentValues(locationId, dates[i]);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, rows);
+
+        int loads = ForecastSnapshot.getProviderLoadCount();
+        ForecastSnapshot snapshot = ForecastSnapshot.getLatest(mContext);
+        assertEquals(loads + 1, ForecastSnapshot.getProviderLoadCount());
+        assertEquals(DAYS, snapshot.getCount());
+        assertEquals(days.get(0).description, snapshot.getDay(0).description);
+
+        ForecastSnapshot.getLatest(mContext);
+        assertEquals("Error: Loaded forecast was not kept for the next reader",
+                loads + 1, ForecastSnapshot.getProviderLoadCount());
+    }
+
+    public void testOtherLocationNotServed() {
+        ForecastSnapshot.publish("London,UK", createDates(0), createDays());
+
+        int loads = ForecastSnapshot.getProviderLoadCount();
+        ForecastSnapshot snapshot = ForecastSnapshot.getLatest(mContext);
+        assertEquals(loads + 1, ForecastSnapshot.getProviderLoadCount());
+        assertEquals("Error: Forecast for another location was served", 0, snapshot.getCount());
+    }
+
+    public void testPassedDaysSkipped() {
+        // Published yesterday: the first day is over
+        ForecastSnapshot.publish(TEST_LOCATION, createDates(-1), createDays());
+
+        ForecastSnapshot snapshot = ForecastSnapshot.getLatest(mContext);
+        assertEquals(DAYS - 1, snapshot.getCount());
+        assertEquals(todayNormalized(), snapshot.getDate(0));
+    }
+
+    private long[] createDates(int firstDay) {
+        long[] dates = new long[DAYS];
+        long today = todayNormalized();
+        for (int i = 0; i < DAYS; i++) {
+            dates[i] = today + (firstDay + i) * DateUtils.DAY_IN_MILLIS;
+        }
+        return dates;
+    }
+
+    private List<ForecastDay> createDays() {
+        List<ForecastDay> days = new ArrayList<ForecastDay>(DAYS);
+        for (int i = 0; i < DAYS; i++) {
+            ForecastDay day = new ForecastDay();
+            day.weatherId = 800 + i;
+            day.description = "Clear " + i;
+            day.high = 20 + i;
+            day.low = 10 + i;
+            day.humidity = 50;
+            day.pressure = 1013;
+            day.windSpeed = 2;
+            day.windDirection = 180;
+            days.add(day);
+        }
+        return days;
+    }
+
+    private ContentValues createLocationValues() {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION);
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 37.4);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -122.1);
+        return values;
+    }
+
+    private long todayNormalized() {
+        return WeatherContract.normalizeDate(System.currentTimeMillis());
+    }
+}
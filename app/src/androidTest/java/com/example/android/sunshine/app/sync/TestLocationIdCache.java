@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+/*
+    Checks that addLocation only asks the database for a location's ID once, and that writes to
+    the location table which could change that ID make it ask again.
+ */
+public class TestLocationIdCache extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "94043";
+    private static final int MANY_LOCATIONS = 300;
+
+    private SunshineSyncAdapter mAdapter;
+    private LocationIdCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllLocations();
+        mAdapter = new SunshineSyncAdapter(mContext, false);
+        mCache = LocationIdCache.getInstance();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllLocations();
+        super.tearDown();
+    }
+
+    public void testSecondLookupCached() {
+        long id = addLocation(TEST_LOCATION);
+        long hits = mCache.getHitCount();
+        long misses = mCache.getMissCount();
+
+        assertEquals(id, addLocation(TEST_LOCATION));
+        assertEquals("Error: Known location was looked up again", misses, mCache.getMissCount());
+        assertEquals(hits + 1, mCache.getHitCount());
+    }
+
+    public void testDeleteInvalidates() {
+        addLocation(TEST_LOCATION);
+        deleteAllLocations();
+
+        long misses = mCache.getMissCount();
+        long newId = addLocation(TEST_LOCATION);
+        assertEquals("Error: Deleted location was still cached", misses + 1, mCache.getMissCount());
+        assertEquals(newId, mCache.get(TEST_LOCATION));
+    }
+
+    public void testSettingUpdateInvalidates() {
+        addLocation(TEST_LOCATION);
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, "London,UK");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, values,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{TEST_LOCATION});
+
+        assertEquals(-1, mCache.get(TEST_LOCATION));
+    }
+
+    public void testValidatorUpdateKeepsCache() {
+        long id = addLocation(TEST_LOCATION);
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_ETAG, "\"abc\"");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, values,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{TEST_LOCATION});
+
+        assertEquals("Error: Validator update dropped the cached ID", id,
+                mCache.get(TEST_LOCATION));
+    }
+
+    public void testManyLocationsCached() {
+        long[] ids = new long[MANY_LOCATIONS];
+        for (int i = 0; i < MANY_LOCATIONS; i++) {
+            ids[i] = addLocation("loc" + i);
+        }
+
+        long misses = mCache.getMissCount();
+        for (int i = 0; i < MANY_LOCATIONS; i++) {
+            assertEquals(ids[i], addLocation("loc" + i));
+        }
+        assertEquals("Error: Locations fell out of the cache", misses, mCache.getMissCount());
+    }
+
+    private long addLocation(String locationSetting) {
+        return mAdapter.addLocation(locationSetting, "City " + locationSetting, 37.4, -122.1);
+    }
+
+    private void deleteAllLocations() {
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.PeriodicSync;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.List;
+
+/*
+    Checks that scheduling the periodic sync, directly or by AdaptiveSyncScheduler changing the
+    interval, replaces the one scheduled before, including ones older versions registered with
+    other extras, instead of adding another next to it.
+ */
+public class TestPeriodicSync extends AndroidTestCase {
+
+    // Newer platforms apply periodic sync changes asynchronously
+    private static final long SETTLE_TIMEOUT_MS = 5000;
+
+    private Account mAccount;
+    private String mAuthority;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = SunshineSyncAdapter.getSyncAccount(mContext);
+        mAuthority = mContext.getString(R.string.content_authority);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearSchedulerState();
+        SunshineSyncAdapter.configurePeriodicSync(mContext, SunshineSyncAdapter.SYNC_INTERVAL,
+                SunshineSyncAdapter.SYNC_FLEXTIME);
+        super.tearDown();
+    }
+
+    public void testConfigureReplacesPeriodicSync() {
+        // What an install upgraded from an older version still has registered
+        Bundle allLocations = new Bundle();
+        allLocations.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_ALL_LOCATIONS, true);
+        ContentResolver.addPeriodicSync(mAccount, mAuthority, allLocations,
+                SunshineSyncAdapter.SYNC_INTERVAL);
+
+        SunshineSyncAdapter.configurePeriodicSync(mContext, SunshineSyncAdapter.SYNC_INTERVAL,
+                SunshineSyncAdapter.SYNC_FLEXTIME);
+        SunshineSyncAdapter.configurePeriodicSync(mContext, SunshineSyncAdapter.SYNC_INTERVAL * 2,
+                SunshineSyncAdapter.SYNC_FLEXTIME * 2);
+
+        List<PeriodicSync> periodicSyncs = waitForSinglePeriodicSync(
+                SunshineSyncAdapter.SYNC_INTERVAL * 2);
+        assertEquals("Error: Expected exactly one periodic sync", 1, periodicSyncs.size());
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL * 2, periodicSyncs.get(0).period);
+        assertFalse("Error: Every periodic sync should not refresh every location",
+                periodicSyncs.get(0).extras.getBoolean(
+                        SunshineSyncAdapter.SYNC_EXTRAS_ALL_LOCATIONS, false));
+    }
+
+    public void testBackingOffReplacesPeriodicSync() {
+        ContentResolver.addPeriodicSync(mAccount, mAuthority, Bundle.EMPTY,
+                SunshineSyncAdapter.SYNC_INTERVAL);
+        SunshineSyncAdapter.configurePeriodicSync(mContext, SunshineSyncAdapter.SYNC_INTERVAL,
+                SunshineSyncAdapter.SYNC_FLEXTIME);
+
+        // One more unchanged sync stretches the interval, whatever the battery is doing
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit()
+                .putInt(mContext.getString(R.string.pref_sync_interval_key),
+                        SunshineSyncAdapter.SYNC_INTERVAL)
+                .putInt(mContext.getString(R.string.pref_sync_applied_interval_key),
+                        SunshineSyncAdapter.SYNC_INTERVAL)
+                .putInt(mContext.getString(R.string.pref_sync_unchanged_streak_key), 1)
+                .commit();
+        int applied = AdaptiveSyncScheduler.onSyncSucceeded(mContext, false);
+        assertTrue("Error: Interval should have backed off",
+                applied > SunshineSyncAdapter.SYNC_INTERVAL);
+
+        List<PeriodicSync> periodicSyncs = waitForSinglePeriodicSync(applied);
+        assertEquals("Error: Expected exactly one periodic sync after backing off",
+                1, periodicSyncs.size());
+        assertEquals(applied, periodicSyncs.get(0).period);
+    }
+
+    private void clearSchedulerState() {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .remove(mContext.getString(R.string.pref_sync_interval_key))
+                .remove(mContext.getString(R.string.pref_sync_applied_interval_key))
+                .remove(mContext.getString(R.string.pref_sync_unchanged_streak_key))
+                .commit();
+    }
+
+    /**
+     * Waits for the periodic syncs to settle on a single one with the given period.
+     *
+     * @return the periodic syncs registered once settled, or when the wait timed out
+     */
+    List<PeriodicSync> waitForSinglePeriodicSync(long period) {
+        long deadline = SystemClock.elapsedRealtime() + SETTLE_TIMEOUT_MS;
+        List<PeriodicSync> periodicSyncs = ContentResolver.getPeriodicSyncs(mAccount, mAuthority);
+        while (!(periodicSyncs.size() == 1 && periodicSyncs.get(0).period == period)
+                && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(100);
+            periodicSyncs = ContentResolver.getPeriodicSyncs(mAccount, mAuthority);
+        }
+        return periodicSyncs;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+    Runs the whole sync pipeline, from fetch through storage and fanout, against forecasts
+    recorded in androidTest/assets/owm instead of the network.
+ */
+public class TestRecordedWeatherSource extends InstrumentationTestCase {
+
+    public static final String LOG_TAG = TestRecordedWeatherSource.class.getSimpleName();
+
+    static final String TEST_LOCATION = "94043";
+    // Saved in the location table, but not the preferred location
+    private static final String SAVED_LOCATION = "99705";
+
+    private static final int BENCHMARK_ITERATIONS = 10;
+
+    private Context mContext;
+    private File mDirectory;
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+
+        mDirectory = new File(mContext.getCacheDir(), LOG_TAG);
+        deleteDirectory(mDirectory);
+        assertTrue(mDirectory.mkdirs());
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedLocation = prefs.getString(mContext.getString(R.string.pref_location_key), null);
+        prefs.edit().putString(mContext.getString(R.string.pref_location_key), TEST_LOCATION)
+                .commit();
+
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        SyncCircuitBreaker.getInstance().reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncCircuitBreaker.getInstance().reset();
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        deleteDirectory(mDirectory);
+
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mContext.getString(R.string.pref_location_key));
+        } else {
+            editor.putString(mContext.getString(R.string.pref_location_key), mSavedLocation);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    public void testReplayStoresForecast() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+
+        sync(source);
+
+        assertEquals("Error: Recorded forecast was not stored", 14, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+    }
+
+    public void testTruncatedReplay() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+        source.setTruncateAfter(512);
+
+        sync(source);
+
+        assertEquals("Error: A truncated forecast was stored", 0, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+    }
+
+    public void testErrorCode() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+        source.setResponseCode(503);
+
+        sync(source);
+
+        assertEquals("Error: A failed fetch stored days", 0, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+        assertEquals(SyncStats.OUTCOME_FAILED, lastSyncOutcome(mContext));
+    }
+
+    public void testServerErrorIsRetried() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+        source.setResponseCode(503);
+        CountingSource counting = new CountingSource(source);
+
+        sync(counting);
+        assertEquals("Error: Server error was not retried", 3, counting.mFetches);
+
+        // A client error won't go away by asking again
+        source.setResponseCode(401);
+        counting.mFetches = 0;
+        sync(counting);
+        assertEquals("Error: Client error was retried", 1, counting.mFetches);
+    }
+
+    public void testCircuitOpensWhileServerFails() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+        source.setResponseCode(404);
+        CountingSource counting = new CountingSource(source);
+
+        for (int i = 0; i < 3; i++) {
+            sync(counting);
+        }
+        assertEquals(3, counting.mFetches);
+
+        // The server is fine again, but the breaker doesn't know that yet
+        source.setResponseCode(0);
+        sync(counting);
+        assertEquals("Error: Open circuit let a sync through", 3, counting.mFetches);
+        assertEquals(SyncStats.OUTCOME_CIRCUIT_OPEN, lastSyncOutcome(mContext));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+        assertEquals(0, countStoredDays());
+    }
+
+    public void testValidatorsAnswerNotModified() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        writeFile(RecordedWeatherSource.fileName(TEST_LOCATION, ".properties"),
+                "code=200\netag=\"recorded\"\n".getBytes("UTF-8"));
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+
+        sync(source);
+        assertEquals(SyncStats.OUTCOME_UPDATED, lastSyncOutcome(mContext));
+
+        // The stored ETag goes out with the next request and matches the recording
+        sync(source);
+        assertEquals(SyncStats.OUTCOME_NOT_MODIFIED, lastSyncOutcome(mContext));
+        assertEquals(14, countStoredDays());
+    }
+
+    public void testRecordAndReplayFaster() throws Exception {
+        File liveDirectory = new File(mDirectory, "live");
+        File recordDirectory = new File(mDirectory, "recorded");
+        assertTrue(liveDirectory.mkdirs());
+        assertTrue(recordDirectory.mkdirs());
+
+        // Stands in for the network: 300ms to first byte, 600ms to send the body
+        copyAsset(TestForecastParser.FORECAST_ASSET, "live/"
+                + RecordedWeatherSource.fileName(TEST_LOCATION, ".json"));
+        writeFile("live/" + RecordedWeatherSource.fileName(TEST_LOCATION, ".properties"),
+                "ttfb_ms=300\ntransfer_ms=600\n".getBytes("UTF-8"));
+        RecordedWeatherSource live = new RecordedWeatherSource(liveDirectory);
+
+        long recordStart = SystemClock.elapsedRealtime();
+        sync(RecordedWeatherSource.recordFrom(live, recordDirectory));
+        long recordMs = SystemClock.elapsedRealtime() - recordStart;
+        assertEquals(14, countStoredDays());
+
+        File recordedBody =
+                new File(recordDirectory, RecordedWeatherSource.fileName(TEST_LOCATION, ".json"));
+        assertTrue("Error: Nothing was recorded", recordedBody.exists());
+        assertTrue("Error: Recording differs from the response", Arrays.equals(
+                TestUtilities.readAsset(getInstrumentation().getContext(),
+                        TestForecastParser.FORECAST_ASSET), readFile(recordedBody)));
+
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        RecordedWeatherSource replay = new RecordedWeatherSource(recordDirectory);
+        replay.setSpeedup(10);
+        long replayStart = SystemClock.elapsedRealtime();
+        sync(replay);
+        long replayMs = SystemClock.elapsedRealtime() - replayStart;
+
+        Log.d(LOG_TAG, "Recorded in " + recordMs + "ms, replayed at 10x in " + replayMs + "ms");
+        assertEquals(14, countStoredDays());
+        assertTrue("Error: Replay was not accelerated", replayMs < recordMs);
+    }
+
+    public void testBenchmarkPipeline() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+
+        long[] times = new long[BENCHMARK_ITERATIONS];
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            // Start from an empty table each time so every run stores all 14 days
+            TestUtilities.deleteAllRecordsFromProvider(mContext);
+            long start = SystemClock.elapsedRealtime();
+            sync(source);
+            times[i] = SystemClock.elapsedRealtime() - start;
+        }
+        Arrays.sort(times);
+        Log.d(LOG_TAG, "Full sync from a recording: median " + times[times.length / 2]
+                + "ms, max " + times[times.length - 1] + "ms over " + BENCHMARK_ITERATIONS);
+    }
+
+    public void testPeriodicSyncRefreshesSavedLocationsDaily() throws Exception {
+        copyAsset(TestForecastParser.FORECAST_ASSET, TEST_LOCATION);
+        copyAsset(TestForecastParser.FORECAST_ASSET, SAVED_LOCATION);
+        ContentValues saved = new ContentValues();
+        saved.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, SAVED_LOCATION);
+        saved.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        saved.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        saved.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, saved);
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .remove(mContext.getString(R.string.pref_last_all_locations_sync_key))
+                .commit();
+        RecordedWeatherSource source = new RecordedWeatherSource(mDirectory);
+        source.setSpeedup(0);
+        CountingSource counting = new CountingSource(source);
+
+        // Periodic syncs carry no extras
+        sync(counting, new Bundle());
+        assertEquals("Error: Saved locations were not refreshed", 2, counting.mFetches);
+
+        counting.mFetches = 0;
+        sync(counting, new Bundle());
+        assertEquals("Error: Saved locations were refreshed again within the day",
+                1, counting.mFetches);
+    }
+
+    /**
+     * Counts how often the sync adapter asks for a forecast.
+     */
+    static class CountingSource implements WeatherSource {
+        private final WeatherSource mSource;
+        volatile int mFetches;
+
+        CountingSource(WeatherSource source) {
+            mSource = source;
+        }
+
+        @Override
+        public Response fetch(String locationQuery, String etag, String lastModified,
+                              SyncDeadline deadline, SyncStats stats) throws IOException {
+            mFetches++;
+            return mSource.fetch(locationQuery, etag, lastModified, deadline, stats);
+        }
+    }
+
+    private void sync(WeatherSource source) {
+        // As the user asks for it, so only ever for the preferred location
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        sync(source, extras);
+    }
+
+    private void sync(WeatherSource source, Bundle extras) {
+        new SunshineSyncAdapter(mContext, false, source,
+                SunshineSyncAdapter.getDefaultSyncDeadlineMs(mContext))
+                .onPerformSync(null, extras, null, null, null);
+    }
+
+    private int countStoredDays() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    static String lastSyncOutcome(Context context) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.SyncLogEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncLogEntry.COLUMN_OUTCOME},
+                null, null,
+                WeatherContract.SyncLogEntry._ID + " DESC");
+        assertNotNull(cursor);
+        assertTrue("Error: Sync was not logged", cursor.moveToFirst());
+        String outcome = cursor.getString(0);
+        cursor.close();
+        return outcome;
+    }
+
+    private void copyAsset(String asset, String locationOrName) throws IOException {
+        String name = locationOrName.endsWith(".json") ? locationOrName
+                : RecordedWeatherSource.fileName(locationOrName, ".json");
+        writeFile(name, TestUtilities.readAsset(getInstrumentation().getContext(), asset));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return TestUtilities.readStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeFile(String name, byte[] contents) throws IOException {
+        OutputStream out = new FileOutputStream(new File(mDirectory, name));
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
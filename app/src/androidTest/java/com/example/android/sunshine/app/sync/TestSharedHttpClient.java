@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.net.SharedHttpClient;
+
+/*
+    Checks that consecutive forecast fetches go out on one kept-alive connection, and that the
+    shared client counts it.
+ */
+public class TestSharedHttpClient extends InstrumentationTestCase {
+
+    public static final String LOG_TAG = TestSharedHttpClient.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "94043";
+    private static final int FETCHES = 5;
+
+    private SlowForecastServer mServer;
+    private OwmWeatherSource mSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new SlowForecastServer(TestUtilities.readAsset(
+                getInstrumentation().getContext(), TestForecastParser.FORECAST_ASSET));
+        mSource = new OwmWeatherSource(SharedHttpClient.getInstance(), mServer.getBaseUrl(),
+                15 * 1000, 20 * 1000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testKeepAliveConnectionReused() throws Exception {
+        mServer.setKeepAlive(true);
+        SharedHttpClient client = SharedHttpClient.getInstance();
+        long reusedBefore = client.getReusedConnectionCount();
+
+        for (int i = 0; i < FETCHES; i++) {
+            SyncStats stats = fetch();
+            assertEquals("Error: Fetch " + i + " reused state", i > 0, stats.connectionReused);
+            if (i > 0) {
+                assertEquals("Error: Reused connection reported a connect time",
+                        0, stats.connectMs);
+            }
+        }
+
+        Log.d(LOG_TAG, "Shared client: " + client);
+        assertEquals(FETCHES, mServer.getRequestCount());
+        assertEquals("Error: Fetches didn't share a connection", 1, mServer.getConnectionCount());
+        assertEquals(FETCHES - 1, client.getReusedConnectionCount() - reusedBefore);
+    }
+
+    public void testClosedConnectionNotReused() throws Exception {
+        mServer.setKeepAlive(false);
+        SharedHttpClient client = SharedHttpClient.getInstance();
+        long newBefore = client.getNewConnectionCount();
+
+        for (int i = 0; i < FETCHES; i++) {
+            assertFalse(fetch().connectionReused);
+        }
+
+        assertEquals(FETCHES, mServer.getConnectionCount());
+        assertEquals(FETCHES, client.getNewConnectionCount() - newBefore);
+    }
+
+    private SyncStats fetch() throws Exception {
+        SyncStats stats = new SyncStats(TEST_LOCATION);
+        WeatherSource.Response response = mSource.fetch(TEST_LOCATION, null, null,
+                SyncDeadline.in(10 * 1000), stats);
+        try {
+            assertEquals(14, ForecastParser.parse(response.body).days.size());
+        } finally {
+            response.close();
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+public class TestSyncCircuitBreaker extends AndroidTestCase {
+
+    private static final long OPEN_MS = 100;
+
+    public void testOpensAfterConsecutiveFailures() {
+        SyncCircuitBreaker breaker = new SyncCircuitBreaker(3, OPEN_MS, OPEN_MS * 4);
+
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+        // A success in between starts the count again
+        breaker.onSuccess();
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+        assertEquals(SyncCircuitBreaker.STATE_CLOSED, breaker.getState());
+
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(SyncCircuitBreaker.STATE_OPEN, breaker.getState());
+        assertFalse("Error: Open breaker let a sync through", breaker.allowRequest());
+    }
+
+    public void testSingleTrialAfterOpenPeriod() {
+        SyncCircuitBreaker breaker = new SyncCircuitBreaker(1, OPEN_MS, OPEN_MS * 4);
+        breaker.onFailure();
+        assertFalse(breaker.allowRequest());
+
+        SystemClock.sleep(OPEN_MS + 20);
+        assertTrue("Error: No trial sync after the open period", breaker.allowRequest());
+        assertEquals(SyncCircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertFalse("Error: A second sync went out during the trial", breaker.allowRequest());
+
+        breaker.onSuccess();
+        assertEquals(SyncCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    public void testFailedTrialBacksOff() {
+        SyncCircuitBreaker breaker = new SyncCircuitBreaker(1, OPEN_MS, OPEN_MS * 4);
+        breaker.onFailure();
+
+        SystemClock.sleep(OPEN_MS + 20);
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(SyncCircuitBreaker.STATE_OPEN, breaker.getState());
+
+        // Open for twice as long after a failed trial
+        SystemClock.sleep(OPEN_MS + 20);
+        assertFalse("Error: Breaker did not back off", breaker.allowRequest());
+        SystemClock.sleep(OPEN_MS);
+        assertTrue(breaker.allowRequest());
+    }
+
+    public void testUnreportedTrialExpires() {
+        SyncCircuitBreaker breaker = new SyncCircuitBreaker(1, OPEN_MS, OPEN_MS * 4);
+        breaker.onFailure();
+
+        SystemClock.sleep(OPEN_MS + 20);
+        assertTrue(breaker.allowRequest());
+        // The trial dies without reporting success or failure
+        assertFalse(breaker.allowRequest());
+
+        SystemClock.sleep(OPEN_MS + 20);
+        assertTrue("Error: Lost trial held the breaker half open", breaker.allowRequest());
+        assertFalse("Error: More than one new trial went out", breaker.allowRequest());
+
+        breaker.onSuccess();
+        assertEquals(SyncCircuitBreaker.STATE_CLOSED, breaker.getState());
+    }
+}
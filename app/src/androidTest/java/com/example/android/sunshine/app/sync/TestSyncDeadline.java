@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.net.SharedHttpClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+
+/*
+    Injects slow servers into the sync and checks that the deadline bounds how long it takes,
+    whichever stage the server stalls in.
+ */
+public class TestSyncDeadline extends InstrumentationTestCase {
+
+    public static final String LOG_TAG = TestSyncDeadline.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "94043";
+
+    private static final long DEADLINE_MS = 1500;
+    // What a sync may take beyond its deadline: logging it and the status update
+    private static final long SLACK_MS = 1000;
+    private static final int TAIL_ITERATIONS = 5;
+
+    private Context mContext;
+    private SlowForecastServer mServer;
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mServer = new SlowForecastServer(TestUtilities.readAsset(
+                getInstrumentation().getContext(), TestForecastParser.FORECAST_ASSET));
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedLocation = prefs.getString(mContext.getString(R.string.pref_location_key), null);
+        prefs.edit().putString(mContext.getString(R.string.pref_location_key), TEST_LOCATION)
+                .commit();
+
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+        SyncCircuitBreaker.getInstance().reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncCircuitBreaker.getInstance().reset();
+        mServer.shutdown();
+        TestUtilities.deleteAllRecordsFromProvider(mContext);
+
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mContext.getString(R.string.pref_location_key));
+        } else {
+            editor.putString(mContext.getString(R.string.pref_location_key), mSavedLocation);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    public void testStageTimeoutsShortenedToDeadline() throws Exception {
+        SyncDeadline deadline = SyncDeadline.in(500);
+        assertTrue(deadline.timeoutMs(15 * 1000) <= 500);
+        assertEquals(100, deadline.timeoutMs(100));
+
+        SyncDeadline expired = SyncDeadline.in(0);
+        assertEquals("Error: An expired deadline turned into no timeout", 1,
+                expired.timeoutMs(15 * 1000));
+        try {
+            expired.check("test");
+            fail("Error: Expired deadline did not throw");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+    }
+
+    public void testStalledHeadersBounded() throws Exception {
+        mServer.setHeaderDelayMs(30 * 1000);
+        assertFetchBounded();
+    }
+
+    public void testTrickledBodyBounded() throws Exception {
+        // A few bytes every 50ms keeps each read well under the read timeout, but the whole
+        // body would take the better part of a minute
+        mServer.setTrickle(16, 50);
+        assertFetchBounded();
+    }
+
+    public void testSyncTailLatencyBounded() throws Exception {
+        mServer.setTrickle(16, 50);
+
+        long[] times = new long[TAIL_ITERATIONS];
+        for (int i = 0; i < TAIL_ITERATIONS; i++) {
+            // Otherwise the breaker opens and the later syncs don't even try
+            SyncCircuitBreaker.getInstance().reset();
+            long start = SystemClock.elapsedRealtime();
+            sync();
+            times[i] = SystemClock.elapsedRealtime() - start;
+        }
+        Arrays.sort(times);
+        long max = times[times.length - 1];
+        Log.d(LOG_TAG, "Sync against a trickling server: median " + times[times.length / 2]
+                + "ms, max " + max + "ms, deadline " + DEADLINE_MS + "ms");
+
+        assertTrue("Error: Sync took " + max + "ms, past its " + DEADLINE_MS + "ms deadline",
+                max < DEADLINE_MS + SLACK_MS);
+        assertEquals("Error: A timed out forecast was stored", 0, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+    }
+
+    public void testFastServerWithinDeadline() throws Exception {
+        sync();
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals("Error: Forecast from a fast server was not stored", 14, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+    }
+
+    public void testLateAnswerKeepsStoredForecast() throws Exception {
+        sync();
+        assertEquals(14, countStoredDays());
+
+        // Answers, but only once the deadline has passed, so there's no time left to store it
+        final byte[] body = TestUtilities.readAsset(
+                getInstrumentation().getContext(), TestForecastParser.FORECAST_ASSET);
+        WeatherSource lateSource = new WeatherSource() {
+            @Override
+            public Response fetch(String locationQuery, String etag, String lastModified,
+                                  SyncDeadline deadline, SyncStats stats) {
+                SystemClock.sleep(DEADLINE_MS + 200);
+                return new Response(HttpURLConnection.HTTP_OK, new ByteArrayInputStream(body),
+                        null, null);
+            }
+        };
+        sync(lateSource);
+
+        assertEquals("Error: A late answer was counted as a server failure",
+                SyncCircuitBreaker.STATE_CLOSED, SyncCircuitBreaker.getInstance().getState());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+        assertEquals("Error: Stored forecast was lost", 14, countStoredDays());
+        assertEquals(SyncStats.OUTCOME_DEADLINE,
+                TestRecordedWeatherSource.lastSyncOutcome(mContext));
+    }
+
+    private void assertFetchBounded() throws Exception {
+        OwmWeatherSource source = createSource();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            WeatherSource.Response response = source.fetch(TEST_LOCATION, null, null,
+                    SyncDeadline.in(DEADLINE_MS), new SyncStats(TEST_LOCATION));
+            try {
+                ForecastParser.parse(response.body);
+            } finally {
+                response.close();
+            }
+            fail("Error: Slow server did not time out");
+        } catch (IOException e) {
+            // expected
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "Fetch gave up after " + elapsed + "ms");
+        assertTrue("Error: Fetch took " + elapsed + "ms, past its " + DEADLINE_MS + "ms deadline",
+                elapsed < DEADLINE_MS + SLACK_MS);
+    }
+
+    private void sync() {
+        sync(createSource());
+    }
+
+    private void sync(WeatherSource source) {
+        // As the user asks for it, so only ever for the preferred location
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        new SunshineSyncAdapter(mContext, false, source, DEADLINE_MS)
+                .onPerformSync(null, extras, null, null, null);
+    }
+
+    private OwmWeatherSource createSource() {
+        return new OwmWeatherSource(SharedHttpClient.getInstance(), mServer.getBaseUrl(),
+                15 * 1000, 20 * 1000);
+    }
+
+    private int countStoredDays() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Checks that the post-sync consumers run concurrently off the calling thread, and that one
+    that hangs or throws doesn't hold up the others.
+ */
+public class TestSyncFanout extends AndroidTestCase {
+
+    private static final long CONSUMER_MS = 500;
+
+    public void testStartReturnsImmediately() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        SyncFanout fanout = newFanout();
+        fanout.add(SyncStats.PHASE_UPDATE_WEAR, 10 * 1000, new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(CONSUMER_MS);
+                done.countDown();
+            }
+        });
+
+        long start = SystemClock.elapsedRealtime();
+        fanout.start();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertTrue("Error: start() waited " + elapsed + "ms for its consumer",
+                elapsed < CONSUMER_MS / 2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testConsumersRunConcurrently() throws Exception {
+        final int consumers = 4;
+        final CountDownLatch done = new CountDownLatch(consumers);
+        SyncFanout fanout = newFanout();
+        for (int i = 0; i < consumers; i++) {
+            fanout.add(SyncStats.PHASE_UPDATE_WIDGETS, 10 * 1000, new Runnable() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(CONSUMER_MS);
+                    done.countDown();
+                }
+            });
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        fanout.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertTrue("Error: " + consumers + " consumers of " + CONSUMER_MS + "ms took "
+                + elapsed + "ms, they ran one after another", elapsed < 2 * CONSUMER_MS);
+    }
+
+    public void testHungConsumerInterrupted() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        SyncFanout fanout = newFanout();
+        fanout.add(SyncStats.PHASE_NOTIFY_WEATHER, 200, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(60 * 1000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        fanout.add(SyncStats.PHASE_UPDATE_WEAR, 10 * 1000, new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+
+        fanout.start();
+        assertTrue("Error: The other consumer waited on the hung one",
+                other.await(1, TimeUnit.SECONDS));
+        assertTrue("Error: Hung consumer was not interrupted at its timeout",
+                interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testThrowingConsumerIsolated() throws Exception {
+        final CountDownLatch other = new CountDownLatch(1);
+        SyncFanout fanout = newFanout();
+        fanout.add(SyncStats.PHASE_UPDATE_MUZEI, 10 * 1000, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("broken consumer");
+            }
+        });
+        fanout.add(SyncStats.PHASE_UPDATE_WIDGETS, 10 * 1000, new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+
+        fanout.start();
+        assertTrue("Error: A throwing consumer kept another from running",
+                other.await(5, TimeUnit.SECONDS));
+    }
+
+    private SyncFanout newFanout() {
+        // The spans are never logged, no sync log row is handed over
+        return new SyncFanout(mContext.getContentResolver(), new SyncStats("94043"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Set;
+
+/**
+ * Inserts many rows into one table through a single compiled INSERT statement, binding each
+ * row's values by position.  SQLiteDatabase.insert builds and compiles the SQL again for every
+ * row, which is most of what a bulk insert of small rows costs.
+ *
+ * The statement is compiled for the columns of the first row, and only compiled again should a
+ * row come with a different set of columns.  Callers own the transaction.
+ */
+class BulkInserter {
+    private static final String LOG_TAG = BulkInserter.class.getSimpleName();
+
+    private final SQLiteDatabase mDb;
+    private final String mTable;
+
+    private String[] mColumns;
+    private SQLiteStatement mStatement;
+
+    BulkInserter(SQLiteDatabase db, String table) {
+        mDb = db;
+        mTable = table;
+    }
+
+    /**
+     * @return the row ID of the new row, or -1 if it couldn't be inserted, like
+     * SQLiteDatabase.insert
+     */
+    long insert(ContentValues values) {
+        if (mStatement == null || !hasColumns(values)) {
+            compile(values);
+        }
+        for (int i = 0; i < mColumns.length; i++) {
+            bind(i + 1, values.get(mColumns[i]));
+        }
+        try {
+            return mStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values + " into " + mTable, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Releases the compiled statement.
+     */
+    void close() {
+        if (mStatement != null) {
+            mStatement.close();
+            mStatement = null;
+        }
+    }
+
+    private boolean hasColumns(ContentValues values) {
+        if (values.size() != mColumns.length) {
+            return false;
+        }
+        for (String column : mColumns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compile(ContentValues values) {
+        close();
+        Set<String> columns = values.keySet();
+        mColumns = columns.toArray(new String[columns.size()]);
+
+        StringBuilder sql = new StringBuilder(64 + mColumns.length * 24);
+        sql.append("INSERT INTO ").append(mTable).append(" (");
+        for (int i = 0; i < mColumns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(mColumns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < mColumns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(")");
+        mStatement = mDb.compileStatement(sql.toString());
+    }
+
+    private void bind(int index, Object value) {
+        if (value == null) {
+            mStatement.bindNull(index);
+        } else if (value instanceof String) {
+            mStatement.bindString(index, (String) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            mStatement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            mStatement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            mStatement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            mStatement.bindBlob(index, (byte[]) value);
+        } else {
+            mStatement.bindString(index, value.toString());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The days a write to the weather table touched, so the provider can notify the URIs of just
+ * those days instead of the whole table.
+ *
+ * A location with one changed day is notified as weather/[location]/[date], which reaches that
+ * day's cursors and the location's forecast list.  A location with several is notified once as
+ * weather/[location], so the list requeries once rather than once per day.  If a write can't be
+ * pinned down, the whole weather table is notified, as before.
+ */
+class ChangedDays {
+
+    private final Map<Long, Set<Long>> mDatesByLocationId = new HashMap<Long, Set<Long>>();
+    private boolean mUnknown;
+
+    void add(long locationId, long date) {
+        Set<Long> dates = mDatesByLocationId.get(locationId);
+        if (dates == null) {
+            dates = new HashSet<Long>();
+            mDatesByLocationId.put(locationId, dates);
+        }
+        dates.add(date);
+    }
+
+    /**
+     * Adds the day a weather row with these (already normalized) values is stored as.
+     */
+    void add(ContentValues values) {
+        Long locationId = values.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            mUnknown = true;
+        } else {
+            add(locationId, date);
+        }
+    }
+
+    /**
+     * Adds the days of the weather rows a delete or update with this selection is about to
+     * change.  Call it in the same transaction as the write.
+     */
+    void addSelected(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(true, WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                add(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Notes a change that can't be narrowed down to days, such as an update moving rows to
+     * another date.
+     */
+    void addUnknown() {
+        mUnknown = true;
+    }
+
+    boolean isEmpty() {
+        return !mUnknown && mDatesByLocationId.isEmpty();
+    }
+
+    /**
+     * @return the URIs to notify, none if nothing changed
+     */
+    List<Uri> getUris(SQLiteDatabase db) {
+        if (mUnknown) {
+            return Collections.singletonList(WeatherEntry.CONTENT_URI);
+        }
+        List<Uri> uris = new ArrayList<Uri>(mDatesByLocationId.size());
+        for (Map.Entry<Long, Set<Long>> location : mDatesByLocationId.entrySet()) {
+            String locationSetting = getLocationSetting(db, location.getKey());
+            if (locationSetting == null) {
+                // Weather for a location that's gone, whoever shows it is watching the table
+                return Collections.singletonList(WeatherEntry.CONTENT_URI);
+            }
+            Set<Long> dates = location.getValue();
+            if (dates.size() == 1) {
+                uris.add(WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                        dates.iterator().next()));
+            } else {
+                uris.add(WeatherEntry.buildWeatherLocation(locationSetting));
+            }
+        }
+        return uris;
+    }
+
+    private static String getLocationSetting(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationId)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
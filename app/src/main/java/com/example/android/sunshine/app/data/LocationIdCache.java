@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+
+/**
+ * Remembers the row ID of each location setting, so a sync doesn't have to query the location
+ * table for an ID that almost never changes.
+ *
+ * WeatherProvider keeps it current: it adds the locations it inserts, and forgets everything
+ * whenever a write could change which row a setting maps to.  Readers that looked an ID up
+ * themselves hand it back with the generation they started from, so an ID read before such a
+ * write is never cached after it.
+ */
+public class LocationIdCache {
+
+    private static final LocationIdCache sInstance = new LocationIdCache();
+
+    // Enough for a few hundred locations without rehashing
+    private final HashMap<String, Long> mIds = new HashMap<String, Long>(512);
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    public static LocationIdCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the row ID of the location, or -1 if it isn't known
+     */
+    public synchronized long get(String locationSetting) {
+        Long id = mIds.get(locationSetting);
+        if (id == null) {
+            mMisses++;
+            return -1;
+        }
+        mHits++;
+        return id;
+    }
+
+    /**
+     * @return the generation to hand to put() along with an ID looked up from now on
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Remembers the row ID of a location, unless the location table changed since generation.
+     */
+    public synchronized void put(String locationSetting, long id, int generation) {
+        if (generation == mGeneration) {
+            mIds.put(locationSetting, id);
+        }
+    }
+
+    /**
+     * Forgets every location, for writes that may have deleted locations or moved a setting to
+     * another row.
+     */
+    synchronized void invalidate() {
+        mIds.clear();
+        mGeneration++;
+    }
+
+    public synchronized int size() {
+        return mIds.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of recent provider queries, so the forecast list, both widgets and Muzei
+ * asking for the same forecast don't each run the same join.
+ *
+ * Results are kept as copies of their rows and every hit gets its own cursor over them, so
+ * callers can move and close what they get independently.  Each result is tagged with the tables
+ * it was read from, and a write to any of those tables drops it.  A query that was already
+ * running when such a write happened is not cached either.  Writes that go around the provider,
+ * straight to the database, aren't seen.
+ *
+ * Only small results are kept, and only the most recently used ones.  Copying rows needs
+ * Cursor.getType, so before Honeycomb nothing is cached.
+ */
+class QueryCache {
+
+    static final int TABLE_WEATHER = 1;
+    static final int TABLE_LOCATION = 1 << 1;
+    private static final int TABLE_COUNT = 2;
+
+    private static final int MAX_ENTRIES = 32;
+    // A forecast is two weeks of days.  Anything much bigger isn't worth holding on to.
+    private static final int MAX_ROWS = 256;
+
+    private final Map<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Bumped by every write to the table at the same index
+    private final long[] mGenerations = new long[TABLE_COUNT];
+    private long mHits;
+    private long mMisses;
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    static String buildKey(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        // \u0000 can't appear in any of the parts, so different queries can't share a key
+        return uri + "\u0000" + Arrays.toString(projection) + "\u0000" + selection
+                + "\u0000" + Arrays.toString(selectionArgs) + "\u0000" + sortOrder;
+    }
+
+    /**
+     * @return a new cursor over the cached result, or null if there is none
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.newCursor();
+    }
+
+    /**
+     * @param tables the TABLE_ flags of the tables the query reads
+     * @return what to hand to put() along with the result of a query that starts now
+     */
+    synchronized long getGeneration(int tables) {
+        long generation = 0;
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            if ((tables & (1 << i)) != 0) {
+                generation += mGenerations[i];
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Caches the result of a query, unless it is empty, too big, or one of its tables was written
+     * since generation.
+     *
+     * @return the cursor to return to the caller: a copy if the result was cached, as caching
+     * reads and closes cursor, otherwise cursor itself
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(String key, int tables, long generation, Cursor cursor) {
+        // Nothing is cached for an empty result, which is what everyone sees until the first sync
+        // and is cheap to ask for again
+        if (cursor == null || cursor.getCount() == 0 || cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            rows[cursor.getPosition()] = row;
+        }
+        cursor.close();
+
+        Entry entry = new Entry(tables, columns, rows);
+        synchronized (this) {
+            if (generation == getGeneration(tables)) {
+                mEntries.put(key, entry);
+            }
+        }
+        return entry.newCursor();
+    }
+
+    /**
+     * Drops every result read from any of tables.
+     *
+     * @param tables TABLE_ flags
+     */
+    synchronized void invalidate(int tables) {
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            if ((tables & (1 << i)) != 0) {
+                mGenerations[i]++;
+            }
+        }
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if ((it.next().mTables & tables) != 0) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static class Entry {
+        final int mTables;
+        final String[] mColumns;
+        final Object[][] mRows;
+
+        Entry(int tables, String[] columns, Object[][] rows) {
+            mTables = tables;
+            mColumns = columns;
+            mRows = rows;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(mColumns, mRows.length);
+            for (Object[] row : mRows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+}
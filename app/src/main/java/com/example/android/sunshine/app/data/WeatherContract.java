@@ -19,7 +19,10 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+
+import com.example.android.sunshine.common.JulianDay;
+
+import java.util.TimeZone;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +46,21 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_LOG = "sync_log";
+    public static final String PATH_SYNC_SPAN = "sync_span";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
-    // the database to the start of the the Julian day at UTC.
+    // the database to the start of their local day.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return normalizeDate(startDate, TimeZone.getDefault());
+    }
+
+    /**
+     * normalizeDate for many dates at once: TimeZone.getDefault returns a copy each call, so
+     * callers fetch the zone once and pass it in.
+     */
+    public static long normalizeDate(long startDate, TimeZone zone) {
+        return JulianDay.normalize(startDate, zone);
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,6 +90,12 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // HTTP validators from the last forecast response stored for this location, sent back
+        // on the next sync so the server can answer 304 Not Modified when nothing changed.
+        // Null when the server didn't supply them.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +180,83 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the sync log table */
+    public static final class SyncLogEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_LOG).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_LOG;
+
+        public static final String TABLE_NAME = "sync_log";
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_START = "start";
+
+        // The location setting that was synced
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        // HTTP status of the forecast response, 0 if no response was received
+        public static final String COLUMN_RESPONSE_CODE = "response_code";
+
+        // Bytes received over the network, i.e. still compressed
+        public static final String COLUMN_WIRE_BYTES = "wire_bytes";
+
+        // Bytes handed to the parser after decompression
+        public static final String COLUMN_DECODED_BYTES = "decoded_bytes";
+
+        // Whether the response body was gzip encoded.  Stored as 0/1.
+        public static final String COLUMN_COMPRESSED = "compressed";
+
+        // Whether the sync ran on a metered network.  Stored as 0/1.
+        public static final String COLUMN_METERED = "metered";
+
+        // Time to open the connection, to receive the response headers (time-to-first-byte)
+        // and to read the body, all in milliseconds
+        public static final String COLUMN_CONNECT_MS = "connect_ms";
+        public static final String COLUMN_TTFB_MS = "ttfb_ms";
+        public static final String COLUMN_TRANSFER_MS = "transfer_ms";
+
+        // Whether the sync changed any stored day of the preferred location.  Stored as 0/1.
+        public static final String COLUMN_CHANGED = "changed";
+
+        // Periodic sync interval in seconds chosen after this sync, 0 if the sync didn't
+        // succeed and the interval was left alone
+        public static final String COLUMN_SYNC_INTERVAL = "sync_interval";
+
+        // How the sync ended: "updated", "unchanged", "not_modified", "failed", "circuit_open" or
+        // "deadline"
+        public static final String COLUMN_OUTCOME = "outcome";
+
+        // The SunshineSyncAdapter.LocationStatus the sync ended with
+        public static final String COLUMN_LOCATION_STATUS = "location_status";
+
+        // 1 if the request went out on a kept-alive connection instead of a new one
+        public static final String COLUMN_CONNECTION_REUSED = "connection_reused";
+    }
+
+    /* Inner class that defines the table contents of the sync span table */
+    public static final class SyncSpanEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_SPAN).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_SPAN;
+
+        public static final String TABLE_NAME = "sync_span";
+
+        // Column with the foreign key into the sync log table.
+        public static final String COLUMN_SYNC_ID = "sync_id";
+
+        // Name of the phase of the sync, e.g. "connect", "bulk_insert" or "update_widgets"
+        public static final String COLUMN_PHASE = "phase";
+
+        // When the phase started relative to the start of the sync, and how long it took,
+        // both in milliseconds
+        public static final String COLUMN_START_OFFSET_MS = "start_offset_ms";
+        public static final String COLUMN_DURATION_MS = "duration_ms";
+    }
 }
@@ -15,25 +15,77 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.support.annotation.VisibleForTesting;
 
+import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncSpanEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The database is opened in write-ahead logging mode where the platform has it (Honeycomb and
+ * up), so the loaders, widgets and Muzei read from their own pooled connections instead of
+ * waiting for a sync's write transaction to finish.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // If you change the database schema, you must increment the database version, and add the
+    // step from the previous version to WeatherDbMigrations.
+    @VisibleForTesting
+    static final int DATABASE_VERSION = 8;
 
     static final String DATABASE_NAME = "weather.db";
 
+    private final boolean mWriteAheadLogging;
+    private final int mAutoCheckpointPages;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true);
+    }
+
+    /**
+     * @param name the database file, or null for an in-memory database
+     * @param writeAheadLogging false to keep the rollback journal, and readers waiting on writers
+     */
+    @VisibleForTesting
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging) {
+        super(context, name, null, DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+        mAutoCheckpointPages =
+                context.getResources().getInteger(R.integer.db_wal_autocheckpoint_pages);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Also sizes the connection pool for concurrent readers
+            setWriteAheadLoggingEnabled(mWriteAheadLogging);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (mWriteAheadLogging && !db.isReadOnly()) {
+            enableWriteAheadLogging(db);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        // How many pages the log may grow to before writers fold it back into the database
+        Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint=" + mAutoCheckpointPages, null);
+        cursor.moveToFirst();
+        cursor.close();
     }
 
     @Override
@@ -45,7 +97,9 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -75,24 +129,78 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                // per location, it's created a UNIQUE constraint with REPLACE strategy.
+                // Location first: its index is how every forecast query finds a location's days,
+                // already in date order.
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        // For pruning past days across all locations after a sync
+        final String SQL_CREATE_WEATHER_DATE_INDEX = "CREATE INDEX " + WeatherEntry.TABLE_NAME +
+                "_" + WeatherEntry.COLUMN_DATE + " ON " + WeatherEntry.TABLE_NAME +
+                " (" + WeatherEntry.COLUMN_DATE + ");";
+
+        // One row per sync, recording what the forecast download cost.  Kept bounded by the
+        // sync adapter, see SunshineSyncAdapter.recordSyncStats.
+        final String SQL_CREATE_SYNC_LOG_TABLE = "CREATE TABLE " + SyncLogEntry.TABLE_NAME + " (" +
+                SyncLogEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncLogEntry.COLUMN_START + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                SyncLogEntry.COLUMN_RESPONSE_CODE + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_WIRE_BYTES + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_DECODED_BYTES + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_COMPRESSED + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_METERED + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_CONNECT_MS + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_TTFB_MS + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_TRANSFER_MS + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_CHANGED + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_SYNC_INTERVAL + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_OUTCOME + " TEXT NOT NULL, " +
+                SyncLogEntry.COLUMN_LOCATION_STATUS + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_CONNECTION_REUSED + " INTEGER NOT NULL DEFAULT 0 " +
+                " );";
+
+        // How long each phase of a sync took.  Trimmed along with the sync log.
+        final String SQL_CREATE_SYNC_SPAN_TABLE = "CREATE TABLE " + SyncSpanEntry.TABLE_NAME + " (" +
+                SyncSpanEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncSpanEntry.COLUMN_SYNC_ID + " INTEGER NOT NULL, " +
+                SyncSpanEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+                SyncSpanEntry.COLUMN_START_OFFSET_MS + " INTEGER NOT NULL, " +
+                SyncSpanEntry.COLUMN_DURATION_MS + " INTEGER NOT NULL, " +
+
+                " FOREIGN KEY (" + SyncSpanEntry.COLUMN_SYNC_ID + ") REFERENCES " +
+                SyncLogEntry.TABLE_NAME + " (" + SyncLogEntry._ID + "));";
+
+        final String SQL_CREATE_SYNC_SPAN_INDEX = "CREATE INDEX " + SyncSpanEntry.TABLE_NAME +
+                "_" + SyncSpanEntry.COLUMN_SYNC_ID + " ON " + SyncSpanEntry.TABLE_NAME +
+                " (" + SyncSpanEntry.COLUMN_SYNC_ID + ");";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_LOG_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_SPAN_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_SPAN_INDEX);
+
+        // Whatever IDs were cached belonged to a database that's gone
+        LocationIdCache.getInstance().invalidate();
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        // Upgrade in place, so what was stored is still there to show before the next sync.
+        if (oldVersion >= WeatherDbMigrations.OLDEST_VERSION) {
+            WeatherDbMigrations.migrate(sqLiteDatabase, oldVersion, newVersion);
+            return;
+        }
+        // Too old to migrate.  This database is only a cache for online data, so start over.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncLogEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncSpanEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
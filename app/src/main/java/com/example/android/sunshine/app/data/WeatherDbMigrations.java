@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncSpanEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * The steps that bring a weather database from one schema version to the next, keeping the
+ * stored forecasts and locations, so an app update doesn't leave the user with an empty list
+ * waiting on the network.
+ *
+ * Each step spells out the schema as of its own version instead of sharing WeatherDbHelper's,
+ * so a later change to onCreate can't change what an old step does.  A schema change adds a
+ * step here along with the new DATABASE_VERSION.
+ */
+class WeatherDbMigrations {
+
+    /**
+     * The oldest version there are steps from.  Anything older is recreated empty.
+     */
+    static final int OLDEST_VERSION = 2;
+
+    interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    // MIGRATIONS[i] upgrades version OLDEST_VERSION + i to the next one
+    private static final Migration[] MIGRATIONS = {
+            // 2 -> 3: validators for conditional forecast requests
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_ETAG + " TEXT");
+                    addColumn(db, LocationEntry.TABLE_NAME,
+                            LocationEntry.COLUMN_LAST_MODIFIED + " TEXT");
+                }
+            },
+            // 3 -> 4: the sync log
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + SyncLogEntry.TABLE_NAME + " (" +
+                            SyncLogEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            SyncLogEntry.COLUMN_START + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                            SyncLogEntry.COLUMN_RESPONSE_CODE + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_WIRE_BYTES + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_DECODED_BYTES + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_COMPRESSED + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_METERED + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_CONNECT_MS + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_TTFB_MS + " INTEGER NOT NULL, " +
+                            SyncLogEntry.COLUMN_TRANSFER_MS + " INTEGER NOT NULL " +
+                            " );");
+                }
+            },
+            // 4 -> 5: whether a sync changed the forecast, and the interval it chose
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    addColumn(db, SyncLogEntry.TABLE_NAME,
+                            SyncLogEntry.COLUMN_CHANGED + " INTEGER NOT NULL DEFAULT 0");
+                    addColumn(db, SyncLogEntry.TABLE_NAME,
+                            SyncLogEntry.COLUMN_SYNC_INTERVAL + " INTEGER NOT NULL DEFAULT 0");
+                }
+            },
+            // 5 -> 6: sync outcomes and per-phase timings
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    addColumn(db, SyncLogEntry.TABLE_NAME,
+                            SyncLogEntry.COLUMN_OUTCOME + " TEXT NOT NULL DEFAULT ''");
+                    addColumn(db, SyncLogEntry.TABLE_NAME,
+                            SyncLogEntry.COLUMN_LOCATION_STATUS + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("CREATE TABLE " + SyncSpanEntry.TABLE_NAME + " (" +
+                            SyncSpanEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            SyncSpanEntry.COLUMN_SYNC_ID + " INTEGER NOT NULL, " +
+                            SyncSpanEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+                            SyncSpanEntry.COLUMN_START_OFFSET_MS + " INTEGER NOT NULL, " +
+                            SyncSpanEntry.COLUMN_DURATION_MS + " INTEGER NOT NULL, " +
+                            " FOREIGN KEY (" + SyncSpanEntry.COLUMN_SYNC_ID + ") REFERENCES " +
+                            SyncLogEntry.TABLE_NAME + " (" + SyncLogEntry._ID + "));");
+                    db.execSQL("CREATE INDEX " + SyncSpanEntry.TABLE_NAME + "_" +
+                            SyncSpanEntry.COLUMN_SYNC_ID + " ON " + SyncSpanEntry.TABLE_NAME +
+                            " (" + SyncSpanEntry.COLUMN_SYNC_ID + ");");
+                }
+            },
+            // 6 -> 7: whether a sync reused a pooled connection
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    addColumn(db, SyncLogEntry.TABLE_NAME,
+                            SyncLogEntry.COLUMN_CONNECTION_REUSED + " INTEGER NOT NULL DEFAULT 0");
+                }
+            },
+            // 7 -> 8: weather keyed by location then date, plus an index on date.  SQLite can't
+            // change a table's constraints, so the table is rebuilt and the rows copied across.
+            new Migration() {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    String rebuilt = WeatherEntry.TABLE_NAME + "_new";
+                    db.execSQL("CREATE TABLE " + rebuilt + " (" +
+                            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                            " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                            WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);");
+                    // Same columns in the same order, and the rows were already unique
+                    db.execSQL("INSERT INTO " + rebuilt + " SELECT * FROM " +
+                            WeatherEntry.TABLE_NAME);
+                    db.execSQL("DROP TABLE " + WeatherEntry.TABLE_NAME);
+                    // Renaming carries the AUTOINCREMENT sequence over too
+                    db.execSQL("ALTER TABLE " + rebuilt + " RENAME TO " + WeatherEntry.TABLE_NAME);
+                    db.execSQL("CREATE INDEX " + WeatherEntry.TABLE_NAME + "_" +
+                            WeatherEntry.COLUMN_DATE + " ON " + WeatherEntry.TABLE_NAME +
+                            " (" + WeatherEntry.COLUMN_DATE + ");");
+                }
+            }
+    };
+
+    /**
+     * @return the newest version the steps reach
+     */
+    static int getLatestVersion() {
+        return OLDEST_VERSION + MIGRATIONS.length;
+    }
+
+    /**
+     * Runs the steps from fromVersion up to toVersion, in the caller's transaction.
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        if (fromVersion < OLDEST_VERSION || toVersion > getLatestVersion()) {
+            throw new IllegalArgumentException("No migration from version " + fromVersion
+                    + " to " + toVersion);
+        }
+        for (int version = fromVersion; version < toVersion; version++) {
+            MIGRATIONS[version - OLDEST_VERSION].migrate(db);
+        }
+    }
+
+    private static void addColumn(SQLiteDatabase db, String table, String columnDefinition) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + columnDefinition);
+    }
+}
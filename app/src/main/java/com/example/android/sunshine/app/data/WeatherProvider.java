@@ -17,25 +17,41 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TimeZone;
 
 public class WeatherProvider extends ContentProvider {
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private final QueryCache mQueryCache = new QueryCache();
+    // What the batch being applied on each thread has changed, to be announced once it commits
+    private final ThreadLocal<PendingChanges> mPendingChanges = new ThreadLocal<PendingChanges>();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int SYNC_LOG = 400;
+    static final int SYNC_SPAN = 500;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // Package private, along with the selections, so the query plans can be tested
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -52,22 +68,30 @@ public class WeatherProvider extends ContentProvider {
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location_id = (SELECT _id FROM location WHERE location_setting = ?) AND date < ?
+    static final String sExpiredDaysSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " < ? ";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -130,6 +154,8 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_LOG, SYNC_LOG);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_SPAN, SYNC_SPAN);
         return matcher;
     }
 
@@ -164,6 +190,10 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_LOG:
+                return WeatherContract.SyncLogEntry.CONTENT_TYPE;
+            case SYNC_SPAN:
+                return WeatherContract.SyncSpanEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -174,8 +204,22 @@ public class WeatherProvider extends ContentProvider {
                         String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
+        final int match = sUriMatcher.match(uri);
+        final int tables = getCachedTables(match);
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        if (tables != 0 && QueryCache.isSupported()) {
+            cacheKey = QueryCache.buildKey(uri, projection, selection, selectionArgs, sortOrder);
+            Cursor cached = mQueryCache.get(cacheKey);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+            cacheGeneration = mQueryCache.getGeneration(tables);
+        }
+
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -213,14 +257,95 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_log"
+            case SYNC_LOG: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncLogEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_span"
+            case SYNC_SPAN: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncSpanEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        if (cacheKey != null) {
+            retCursor = mQueryCache.put(cacheKey, tables, cacheGeneration, retCursor);
+        }
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
 
+    /**
+     * @return the QueryCache.TABLE_ flags of the tables behind match, or 0 for the sync tables,
+     * which are written far more often than they are read and so aren't cached
+     */
+    private static int getCachedTables(int match) {
+        switch (match) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+            case WEATHER_WITH_LOCATION:
+                return QueryCache.TABLE_WEATHER | QueryCache.TABLE_LOCATION;
+            case WEATHER:
+                return QueryCache.TABLE_WEATHER;
+            case LOCATION:
+                return QueryCache.TABLE_LOCATION;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Drops the cached queries that read tables and tells observers of uri it changed, once the
+     * write is committed: right away, or at the end of the batch being applied.  A query running
+     * before then would cache what was there before the write.
+     *
+     * @param tables the QueryCache.TABLE_ flags of the tables written
+     */
+    private void notifyChange(Uri uri, int tables) {
+        PendingChanges batch = mPendingChanges.get();
+        if (batch != null) {
+            batch.uris.add(uri);
+            batch.tables |= tables;
+            return;
+        }
+        if (tables != 0) {
+            mQueryCache.invalidate(tables);
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Notifies the URIs of just the weather days changedDays holds.
+     */
+    private void notifyChange(SQLiteDatabase db, ChangedDays changedDays) {
+        for (Uri uri : changedDays.getUris(db)) {
+            notifyChange(uri, QueryCache.TABLE_WEATHER);
+        }
+    }
+
+    @VisibleForTesting
+    QueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
@@ -229,21 +354,44 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        ChangedDays changedDays = null;
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
+                normalizeDate(values, TimeZone.getDefault());
                 long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                changedDays = new ChangedDays();
+                changedDays.add(values);
                 break;
             }
             case LOCATION: {
+                LocationIdCache locationIds = LocationIdCache.getInstance();
+                int generation = locationIds.getGeneration();
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                    locationIds.put(values.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), _id, generation);
+                } else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case SYNC_LOG: {
+                long _id = db.insert(WeatherContract.SyncLogEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case SYNC_SPAN: {
+                long _id = db.insert(WeatherContract.SyncSpanEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
@@ -251,7 +399,11 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (changedDays != null) {
+            notifyChange(db, changedDays);
+        } else {
+            notifyChange(uri, getCachedTables(match));
+        }
         return returnUri;
     }
 
@@ -260,32 +412,55 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        ChangedDays changedDays = null;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                changedDays = new ChangedDays();
+                db.beginTransaction();
+                try {
+                    changedDays.addSelected(db, selection, selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                LocationIdCache.getInstance().invalidate();
+                break;
+            case SYNC_LOG:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncLogEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case SYNC_SPAN:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncSpanEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changedDays != null) {
+                notifyChange(db, changedDays);
+            } else {
+                notifyChange(uri, getCachedTables(match));
+            }
         }
         return rowsDeleted;
     }
 
-    private void normalizeDate(ContentValues values) {
+    private void normalizeDate(ContentValues values, TimeZone zone) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(dateValue, zone));
         }
     }
 
@@ -295,53 +470,206 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        ChangedDays changedDays = null;
 
         switch (match) {
             case WEATHER:
-                normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                normalizeDate(values, TimeZone.getDefault());
+                changedDays = new ChangedDays();
+                db.beginTransaction();
+                try {
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        // Rows moving to other days change those days too
+                        changedDays.addUnknown();
+                    } else {
+                        changedDays.addSelected(db, selection, selectionArgs);
+                    }
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                // Validator updates, every sync, leave the cached IDs alone
+                if (rowsUpdated != 0 && (values.containsKey(WeatherContract.LocationEntry._ID)
+                        || values.containsKey(
+                                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING))) {
+                    LocationIdCache.getInstance().invalidate();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changedDays != null) {
+                notifyChange(db, changedDays);
+            } else {
+                notifyChange(uri, getCachedTables(match));
+            }
         }
         return rowsUpdated;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        // One zone for the whole batch, rather than a copy of the default per row
+        TimeZone zone;
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                zone = TimeZone.getDefault();
+                for (ContentValues value : values) {
+                    normalizeDate(value, zone);
+                }
+                return bulkInsert(uri, match, WeatherContract.WeatherEntry.TABLE_NAME, values,
+                        new ChangedDays());
+            case WEATHER_WITH_LOCATION:
+                zone = TimeZone.getDefault();
+                for (ContentValues value : values) {
+                    normalizeDate(value, zone);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                return replaceForecast(uri, values);
+            case LOCATION:
+                return bulkInsert(uri, match, WeatherContract.LocationEntry.TABLE_NAME, values,
+                        null);
+            case SYNC_SPAN:
+                return bulkInsert(uri, match, WeatherContract.SyncSpanEntry.TABLE_NAME, values,
+                        null);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Inserts all the rows in one transaction through one compiled statement, and notifies
+     * observers of uri once.
+     *
+     * @param changedDays for weather rows, where to collect the days inserted so only they are
+     *                    notified instead of uri, otherwise null
+     * @return how many rows were inserted
+     */
+    private int bulkInsert(Uri uri, int match, String table, ContentValues[] values,
+                           ChangedDays changedDays) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        BulkInserter inserter = new BulkInserter(db, table);
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long _id = inserter.insert(value);
+                if (_id != -1) {
+                    returnCount++;
+                    if (changedDays != null) {
+                        changedDays.add(value);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            inserter.close();
+        }
+        if (returnCount > 0) {
+            if (changedDays != null) {
+                notifyChange(db, changedDays);
+            } else {
+                notifyChange(uri, getCachedTables(match));
+            }
+        }
+        return returnCount;
+    }
+
+    /**
+     * Replaces the forecast of the location in uri, a weather/[location]?date=[start] URI, in one
+     * transaction: the given days are written over any stored for the same date, and the
+     * location's days before the start date are deleted.  Readers never see one without the other,
+     * and observers of the location's weather are notified once, if anything changed.
+     *
+     * @return how many rows were inserted
+     */
+    private int replaceForecast(Uri uri, ContentValues[] values) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        BulkInserter inserter = new BulkInserter(db, WeatherContract.WeatherEntry.TABLE_NAME);
+        ChangedDays changedDays = new ChangedDays();
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            if (startDate != 0) {
+                String[] selectionArgs = {locationSetting, Long.toString(startDate)};
+                changedDays.addSelected(db, sExpiredDaysSelection, selectionArgs);
+                db.delete(WeatherContract.WeatherEntry.TABLE_NAME, sExpiredDaysSelection,
+                        selectionArgs);
+            }
+            // The weather table replaces a row on a conflicting location and date
+            for (ContentValues value : values) {
+                long _id = inserter.insert(value);
+                if (_id != -1) {
+                    returnCount++;
+                    changedDays.add(value);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            inserter.close();
+        }
+        if (!changedDays.isEmpty()) {
+            notifyChange(db, changedDays);
+        }
+        return returnCount;
+    }
+
+    /**
+     * Applies the whole batch in one transaction, so it costs one commit instead of one per
+     * operation, and either all of it is stored or none of it is.  Observers of each URI the
+     * batch changed are notified once, after the commit.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mPendingChanges.get() != null) {
+            // Already inside a batch on this thread
+            return super.applyBatch(operations);
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        PendingChanges changes = new PendingChanges();
+        ContentProviderResult[] results;
+        boolean committed = false;
+        mPendingChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mPendingChanges.remove();
+            if (!committed) {
+                // Location inserts cached IDs that were just rolled back
+                LocationIdCache.getInstance().invalidate();
+            }
+        }
+        if (changes.tables != 0) {
+            mQueryCache.invalidate(changes.tables);
+        }
+        for (Uri uri : changes.uris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return results;
+    }
+
+    private static class PendingChanges {
+        final Set<Uri> uris = new LinkedHashSet<Uri>();
+        int tables;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.net;
+
+import android.os.SystemClock;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one HTTP client of the process.  Everything that fetches over HTTP should go through it so
+ * that they all share its connection pool: a connection left idle by one sync, or by one location
+ * of a sync of all locations, is picked up again by the next request to the same host instead of
+ * paying for a new TCP (and TLS) handshake.
+ *
+ * Counts how many requests were served on a reused connection, for the process as a whole and,
+ * through {@link CallMetrics}, for each request.
+ */
+public class SharedHttpClient {
+    // Idle connections kept in the pool, and for how long
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static SharedHttpClient sInstance;
+
+    private final OkHttpClient mClient;
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mNewConnections = new AtomicLong();
+    private final AtomicLong mReusedConnections = new AtomicLong();
+
+    /**
+     * What happened to the connection of one request.  Attach one to a request with
+     * {@code Request.Builder.tag(CallMetrics.class, metrics)} to have it filled in.
+     */
+    public static class CallMetrics {
+        // elapsedRealtime when the request started and when it got its connection
+        public volatile long callStart;
+        public volatile long connectionAcquired;
+        // Whether the connection was already open, and if not how long opening it took
+        public volatile boolean connectionReused;
+        public volatile long connectMs;
+    }
+
+    public static synchronized SharedHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new SharedHttpClient();
+        }
+        return sInstance;
+    }
+
+    private SharedHttpClient() {
+        mClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES,
+                        TimeUnit.MINUTES))
+                .retryOnConnectionFailure(true)
+                .eventListenerFactory(new EventListener.Factory() {
+                    @Override
+                    public EventListener create(Call call) {
+                        return new MetricsListener(call.request().tag(CallMetrics.class));
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the client to make requests with.  Per request settings such as timeouts go on a
+     * {@code newBuilder()} of it, which keeps sharing the pool.
+     */
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getNewConnectionCount() {
+        return mNewConnections.get();
+    }
+
+    public long getReusedConnectionCount() {
+        return mReusedConnections.get();
+    }
+
+    /**
+     * @return the share of requests so far that were served on an already open connection, 0 if
+     * there were none
+     */
+    public float getReuseRate() {
+        long reused = mReusedConnections.get();
+        long total = reused + mNewConnections.get();
+        return total == 0 ? 0f : (float) reused / total;
+    }
+
+    @Override
+    public String toString() {
+        return mRequests.get() + " requests, " + mNewConnections.get() + " new connections, "
+                + mReusedConnections.get() + " reused";
+    }
+
+    private class MetricsListener extends EventListener {
+        private final CallMetrics mMetrics;
+        private long mConnectStart;
+        private boolean mConnected;
+
+        MetricsListener(CallMetrics metrics) {
+            // Requests nobody asked metrics for still count towards the totals
+            mMetrics = metrics != null ? metrics : new CallMetrics();
+        }
+
+        @Override
+        public void callStart(Call call) {
+            mRequests.incrementAndGet();
+            mMetrics.callStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            mConnectStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            mConnected = true;
+            mMetrics.connectMs += SystemClock.elapsedRealtime() - mConnectStart;
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            mMetrics.connectionAcquired = SystemClock.elapsedRealtime();
+            mMetrics.connectionReused = !mConnected;
+            if (mConnected) {
+                mNewConnections.incrementAndGet();
+            } else {
+                mReusedConnections.incrementAndGet();
+            }
+            // A retry or redirect acquires again, and may connect again
+            mConnected = false;
+        }
+    }
+}
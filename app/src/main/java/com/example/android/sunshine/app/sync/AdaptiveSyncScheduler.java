@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+/**
+ * Stretches the periodic sync interval while the forecast keeps coming back unchanged and
+ * tightens it again as soon as it moves, so we wake the radio less often for a stable forecast
+ * without letting a changing one go stale.  On battery, and especially on low battery, the
+ * interval is stretched further.
+ */
+class AdaptiveSyncScheduler {
+    private static final String LOG_TAG = AdaptiveSyncScheduler.class.getSimpleName();
+
+    // Bounds of the interval, in seconds: 1 hour to 12 hours
+    static final int MIN_INTERVAL = SunshineSyncAdapter.SYNC_INTERVAL / 3;
+    static final int MAX_INTERVAL = SunshineSyncAdapter.SYNC_INTERVAL * 4;
+    // On low battery, outside those bounds: 24 hours whatever the forecast is doing
+    static final int LOW_BATTERY_INTERVAL = MAX_INTERVAL * 2;
+
+    // Unchanged syncs in a row before the interval is stretched
+    private static final int UNCHANGED_SYNCS_TO_BACK_OFF = 2;
+
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    /**
+     * Adjusts the periodic sync after a successful sync of the preferred location, rescheduling
+     * it if the interval changed.  This function should not be called from the UI thread because
+     * it uses commit to write to the shared preferences.
+     *
+     * @param changed whether the sync changed any stored day
+     * @return the periodic sync interval now in effect, in seconds
+     */
+    static int onSyncSucceeded(Context context, boolean changed) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String intervalKey = context.getString(R.string.pref_sync_interval_key);
+        String appliedKey = context.getString(R.string.pref_sync_applied_interval_key);
+        String streakKey = context.getString(R.string.pref_sync_unchanged_streak_key);
+
+        int interval = prefs.getInt(intervalKey, SunshineSyncAdapter.SYNC_INTERVAL);
+        int unchangedStreak = changed ? 0 : prefs.getInt(streakKey, 0) + 1;
+
+        if (changed) {
+            interval = Math.max(interval / 2, MIN_INTERVAL);
+        } else if (unchangedStreak >= UNCHANGED_SYNCS_TO_BACK_OFF) {
+            interval = Math.min(interval * 2, MAX_INTERVAL);
+            unchangedStreak = 0;
+        }
+
+        // The battery only stretches what gets scheduled, not the interval we learned
+        int applied = applyBatteryState(context, interval);
+        int previouslyApplied = prefs.getInt(appliedKey, SunshineSyncAdapter.SYNC_INTERVAL);
+
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt(intervalKey, interval);
+        editor.putInt(streakKey, unchangedStreak);
+        editor.putInt(appliedKey, applied);
+        editor.commit();
+
+        if (applied != previouslyApplied) {
+            Log.d(LOG_TAG, "Periodic sync every " + applied + "s, was " + previouslyApplied + "s");
+            // Replaces the periodic sync scheduled before, rather than adding another
+            SunshineSyncAdapter.configurePeriodicSync(context, applied, applied / 3);
+        }
+        return applied;
+    }
+
+    private static int applyBatteryState(Context context, int interval) {
+        // ACTION_BATTERY_CHANGED is sticky, so this reads the last broadcast without a receiver
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return interval;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+        if (charging) {
+            return interval;
+        }
+
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        boolean low = level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        if (low) {
+            return LOW_BATTERY_INTERVAL;
+        }
+        return Math.min(interval * 3 / 2, MAX_INTERVAL);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.gcm.GcmNetworkManager;
+import com.google.android.gms.gcm.OneoffTask;
+import com.google.android.gms.gcm.Task;
+
+/**
+ * Holds on to sync requests made while the device is offline, instead of starting syncs that can
+ * only fail with LOCATION_STATUS_SERVER_DOWN.
+ *
+ * However many requests come in while offline, they collapse into one pending sync, kept in the
+ * shared preferences and scheduled with GcmNetworkManager to run once a network is connected,
+ * across reboots.  Nothing wakes the device while it stays offline.  Without Google Play
+ * services there is nothing to wait for the network with, so requests go through as before.
+ */
+public class DeferredSyncQueue {
+    private static final String LOG_TAG = DeferredSyncQueue.class.getSimpleName();
+
+    static final String TASK_TAG = "deferred_sync";
+    // GcmNetworkManager wants a window, the network constraint is what actually holds it back
+    private static final long WINDOW_END_SECONDS = 30;
+
+    private static final Object sLock = new Object();
+
+    /**
+     * Defers the sync if there is no network to sync over.
+     *
+     * @return true if the sync was deferred, false if it should go ahead now
+     */
+    static boolean deferIfOffline(Context context) {
+        if (Utility.isNetworkAvailable(context) || !canSchedule(context)) {
+            return false;
+        }
+        defer(context);
+        return true;
+    }
+
+    /**
+     * @return true if a sync is waiting for the network
+     */
+    public static boolean isPending(Context context) {
+        return getPendingRequests(context) > 0;
+    }
+
+    /**
+     * @return how many sync requests are waiting for the network, collapsed into one sync
+     */
+    public static int getPendingRequests(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getInt(context.getString(R.string.pref_deferred_sync_requests_key), 0);
+    }
+
+    static void defer(Context context) {
+        int pending;
+        synchronized (sLock) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            String key = context.getString(R.string.pref_deferred_sync_requests_key);
+            pending = prefs.getInt(key, 0) + 1;
+            prefs.edit().putInt(key, pending).commit();
+        }
+        Log.d(LOG_TAG, "Offline, deferring sync (" + pending + " requests pending)");
+        if (pending == 1) {
+            schedule(context);
+        }
+    }
+
+    /**
+     * Empties the queue.
+     *
+     * @return how many requests were pending
+     */
+    static int takePending(Context context) {
+        synchronized (sLock) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            String key = context.getString(R.string.pref_deferred_sync_requests_key);
+            int pending = prefs.getInt(key, 0);
+            if (pending > 0) {
+                prefs.edit().remove(key).commit();
+            }
+            return pending;
+        }
+    }
+
+    /**
+     * Schedules the task that syncs once a network is connected.  The task has a fixed tag and
+     * replaces any scheduled before it, so there is never more than one.
+     */
+    static void schedule(Context context) {
+        if (!canSchedule(context)) {
+            return;
+        }
+        OneoffTask task = new OneoffTask.Builder()
+                .setService(DeferredSyncService.class)
+                .setTag(TASK_TAG)
+                .setExecutionWindow(0, WINDOW_END_SECONDS)
+                .setRequiredNetwork(Task.NETWORK_STATE_CONNECTED)
+                .setPersisted(true)
+                .setUpdateCurrent(true)
+                .build();
+        GcmNetworkManager.getInstance(context).schedule(task);
+    }
+
+    private static boolean canSchedule(Context context) {
+        return GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(context)
+                == ConnectionResult.SUCCESS;
+    }
+}
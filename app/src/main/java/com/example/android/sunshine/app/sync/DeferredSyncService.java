@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import com.google.android.gms.gcm.GcmNetworkManager;
+import com.google.android.gms.gcm.GcmTaskService;
+import com.google.android.gms.gcm.TaskParams;
+
+/**
+ * Run by GcmNetworkManager once a network is connected, to start the one sync standing in for
+ * every request DeferredSyncQueue held back while offline.
+ */
+public class DeferredSyncService extends GcmTaskService {
+    private static final String LOG_TAG = DeferredSyncService.class.getSimpleName();
+
+    @Override
+    public int onRunTask(TaskParams params) {
+        int pending = DeferredSyncQueue.takePending(this);
+        if (pending > 0) {
+            Log.d(LOG_TAG, "Back online, syncing for " + pending + " deferred requests");
+            SunshineSyncAdapter.syncImmediately(this);
+        }
+        return GcmNetworkManager.RESULT_SUCCESS;
+    }
+
+    @Override
+    public void onInitializeTasks() {
+        // Scheduled tasks are dropped when the app or Google Play services is updated
+        if (DeferredSyncQueue.isPending(this)) {
+            DeferredSyncQueue.schedule(this);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parsed result of a forecast request: the city the server resolved the location setting to,
+ * and the days of forecast in order, starting with today.
+ */
+public class Forecast {
+    // OWM puts its own status code in the body ("cod"); assume success when it is absent.
+    public int messageCode = HttpURLConnection.HTTP_OK;
+
+    public String cityName;
+    public double cityLatitude;
+    public double cityLongitude;
+
+    public final List<ForecastDay> days = new ArrayList<ForecastDay>(14);
+
+    // Validators the server sent with this forecast, either may be null
+    public String etag;
+    public String lastModified;
+}
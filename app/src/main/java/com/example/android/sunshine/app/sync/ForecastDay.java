@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * A single day of forecast as read from the server.  The date is not part of the record: OWM
+ * returns days in order starting with today, so the date is derived from the position in the list.
+ */
+public class ForecastDay {
+    public int weatherId;
+    public String description;
+    public double high;
+    public double low;
+    public int humidity;
+    public double pressure;
+    public double windSpeed;
+    public double windDirection;
+
+    /**
+     * @return true if other holds the same forecast values as this day
+     */
+    public boolean sameValues(ForecastDay other) {
+        return weatherId == other.weatherId
+                && (description == null ? other.description == null
+                        : description.equals(other.description))
+                && Double.compare(high, other.high) == 0
+                && Double.compare(low, other.low) == 0
+                && humidity == other.humidity
+                && Double.compare(pressure, other.pressure) == 0
+                && Double.compare(windSpeed, other.windSpeed) == 0
+                && Double.compare(windDirection, other.windDirection) == 0;
+    }
+
+    /**
+     * Builds the row for the weather table.
+     *
+     * @param locationId the row ID of the location this day belongs to
+     * @param dateTime the normalized UTC date of this day
+     */
+    public ContentValues toContentValues(long locationId, long dateTime) {
+        ContentValues weatherValues = new ContentValues(10);
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        return weatherValues;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Compares freshly downloaded days against what is already stored for a location, so that only
+ * days whose values actually changed get written.  Writing identical rows would still replace
+ * them and wake every observer of the weather table for nothing.
+ */
+class ForecastDiff {
+
+    private static final String[] STORED_DAY_PROJECTION = new String[] {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+    private static final int INDEX_HUMIDITY = 5;
+    private static final int INDEX_PRESSURE = 6;
+    private static final int INDEX_WIND_SPEED = 7;
+    private static final int INDEX_DEGREES = 8;
+
+    // Rows that need writing: days that weren't stored yet, then days whose values changed
+    final List<ContentValues> changedRows = new ArrayList<ContentValues>();
+    int inserted;
+    int updated;
+    int unchanged;
+
+    /**
+     * @param locationId the row ID of the location the days belong to
+     * @param dates the normalized date of each day, in the same order as days
+     * @param days the downloaded forecast
+     */
+    static ForecastDiff compute(ContentResolver resolver, long locationId, long[] dates,
+                                List<ForecastDay> days) {
+        ForecastDiff diff = new ForecastDiff();
+        if (days.isEmpty()) {
+            return diff;
+        }
+
+        // One query for every stored day in the window we're about to write
+        LongSparseArray<ForecastDay> stored = new LongSparseArray<ForecastDay>(days.size());
+        Cursor cursor = resolver.query(
+                WeatherEntry.CONTENT_URI,
+                STORED_DAY_PROJECTION,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(locationId), Long.toString(dates[0])},
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                ForecastDay day = new ForecastDay();
+                day.weatherId = cursor.getInt(INDEX_WEATHER_ID);
+                day.description = cursor.getString(INDEX_SHORT_DESC);
+                day.high = cursor.getDouble(INDEX_MAX_TEMP);
+                day.low = cursor.getDouble(INDEX_MIN_TEMP);
+                day.humidity = cursor.getInt(INDEX_HUMIDITY);
+                day.pressure = cursor.getDouble(INDEX_PRESSURE);
+                day.windSpeed = cursor.getDouble(INDEX_WIND_SPEED);
+                day.windDirection = cursor.getDouble(INDEX_DEGREES);
+                stored.put(cursor.getLong(INDEX_DATE), day);
+            }
+            cursor.close();
+        }
+
+        TimeZone zone = TimeZone.getDefault();
+        for (int i = 0; i < days.size(); i++) {
+            ForecastDay day = days.get(i);
+            long date = WeatherContract.normalizeDate(dates[i], zone);
+            ForecastDay storedDay = stored.get(date);
+            if (storedDay == null) {
+                diff.inserted++;
+            } else if (storedDay.sameValues(day)) {
+                diff.unchanged++;
+                continue;
+            } else {
+                diff.updated++;
+            }
+            diff.changedRows.add(day.toContentValues(locationId, dates[i]));
+        }
+        return diff;
+    }
+
+    boolean hasChanges() {
+        return !changedRows.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return inserted + " inserted, " + updated + " updated, " + unchanged + " unchanged";
+    }
+}
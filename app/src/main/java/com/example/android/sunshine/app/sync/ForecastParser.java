@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Streaming parser for the OWM daily forecast response.
+ *
+ * The response is read token by token straight off the connection, so neither the raw JSON
+ * String nor an org.json object tree is ever built.  Fields we don't use are skipped without
+ * being materialized.
+ */
+public class ForecastParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Parses the response body.  The stream is not closed.
+     *
+     * @throws JSONException if the body is not a well-formed forecast
+     * @throws IOException if reading from the stream fails
+     */
+    public static Forecast parse(InputStream in) throws IOException, JSONException {
+        return parse(new BufferedReader(new InputStreamReader(in, "UTF-8"), BUFFER_SIZE));
+    }
+
+    /**
+     * Parses the response body.  The reader is not closed.
+     *
+     * @throws JSONException if the body is not a well-formed forecast
+     * @throws IOException if reading fails
+     */
+    public static Forecast parse(Reader in) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        Forecast forecast = new Forecast();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    // OWM sends this as "200" on success and 404 on failure, nextInt copes with both
+                    forecast.messageCode = reader.nextInt();
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, forecast);
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        forecast.days.add(readDay(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw asJsonException(e);
+        }
+
+        // An error response carries no forecast, so only a successful one has to be complete.
+        if (forecast.messageCode == HttpURLConnection.HTTP_OK && forecast.cityName == null) {
+            throw new JSONException("No value for " + OWM_CITY);
+        }
+        return forecast;
+    }
+
+    private static void readCity(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        boolean hasCoord = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                hasCoord = true;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        forecast.cityLatitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        forecast.cityLongitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (forecast.cityName == null) {
+            throw new JSONException("No value for " + OWM_CITY_NAME);
+        }
+        if (!hasCoord) {
+            throw new JSONException("No value for " + OWM_COORD);
+        }
+    }
+
+    private static ForecastDay readDay(JsonReader reader) throws IOException, JSONException {
+        ForecastDay day = new ForecastDay();
+        boolean hasWeather = false;
+        boolean hasTemperature = false;
+        boolean hasPressure = false;
+        boolean hasHumidity = false;
+        boolean hasWindSpeed = false;
+        boolean hasWindDirection = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                hasPressure = true;
+                day.pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                hasHumidity = true;
+                // Humidity is stored as a whole percentage, same as JSONObject.getInt would give us
+                day.humidity = (int) reader.nextDouble();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                hasWindSpeed = true;
+                day.windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                hasWindDirection = true;
+                day.windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                hasTemperature = true;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    hasWeather = true;
+                    readWeather(reader, day);
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasWeather || day.description == null) {
+            throw new JSONException("No value for " + OWM_WEATHER);
+        }
+        if (!hasTemperature) {
+            throw new JSONException("No value for " + OWM_TEMPERATURE);
+        }
+        // Stored as is, so a missing one would show up as a made-up 0 rather than an error
+        if (!hasPressure) {
+            throw new JSONException("No value for " + OWM_PRESSURE);
+        }
+        if (!hasHumidity) {
+            throw new JSONException("No value for " + OWM_HUMIDITY);
+        }
+        if (!hasWindSpeed) {
+            throw new JSONException("No value for " + OWM_WINDSPEED);
+        }
+        if (!hasWindDirection) {
+            throw new JSONException("No value for " + OWM_WIND_DIRECTION);
+        }
+        return day;
+    }
+
+    private static void readWeather(JsonReader reader, ForecastDay day) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DESCRIPTION.equals(name)) {
+                day.description = reader.nextString();
+            } else if (OWM_WEATHER_ID.equals(name) && reader.peek() != JsonToken.NULL) {
+                day.weatherId = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static JSONException asJsonException(Exception e) {
+        JSONException jsonException = new JSONException(e.getMessage());
+        jsonException.initCause(e);
+        return jsonException;
+    }
+}
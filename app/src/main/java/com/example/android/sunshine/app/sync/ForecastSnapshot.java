@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.VisibleForTesting;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The latest forecast for the preferred location, from today on, kept in memory.
+ *
+ * The sync publishes every forecast it stores for the preferred location, so the widgets, Muzei
+ * and the notification can show it without querying the provider for what the sync just wrote.
+ * Only a process that hasn't synced yet has to load it from the provider, once.
+ */
+public class ForecastSnapshot {
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+
+    private static final AtomicReference<ForecastSnapshot> sLatest =
+            new AtomicReference<ForecastSnapshot>();
+    private static final AtomicInteger sProviderLoads = new AtomicInteger();
+
+    private final String mLocationSetting;
+    // normalized dates, in the same order as the days
+    private final long[] mDates;
+    private final List<ForecastDay> mDays;
+    // index of the first day that hasn't passed yet
+    private final int mStart;
+
+    private ForecastSnapshot(String locationSetting, long[] dates, List<ForecastDay> days,
+                             int start) {
+        mLocationSetting = locationSetting;
+        mDates = dates;
+        mDays = days;
+        mStart = start;
+    }
+
+    /**
+     * Makes a freshly stored forecast the latest one.
+     *
+     * @param dates the date of each day, in the same order as days
+     */
+    static void publish(String locationSetting, long[] dates, List<ForecastDay> days) {
+        long[] normalized = new long[dates.length];
+        TimeZone zone = TimeZone.getDefault();
+        for (int i = 0; i < dates.length; i++) {
+            normalized[i] = WeatherContract.normalizeDate(dates[i], zone);
+        }
+        sLatest.set(new ForecastSnapshot(locationSetting, normalized,
+                new ArrayList<ForecastDay>(days), 0));
+    }
+
+    /**
+     * @return the forecast for the preferred location from today on, which is empty if there is
+     * none stored.  Never null.
+     */
+    public static ForecastSnapshot getLatest(Context context) {
+        String locationSetting = Utility.getPreferredLocation(context);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+
+        ForecastSnapshot latest = sLatest.get();
+        if (latest != null && latest.mLocationSetting.equals(locationSetting)) {
+            return latest.startingFrom(today);
+        }
+
+        // Nothing synced for this location since the process started, ask the provider
+        ForecastSnapshot loaded = load(context, locationSetting, today);
+        if (loaded.getCount() > 0) {
+            // Unless a sync published something newer in the meantime
+            sLatest.compareAndSet(latest, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Forgets the latest forecast, so the next reader loads it from the provider.
+     */
+    @VisibleForTesting
+    public static void clear() {
+        sLatest.set(null);
+    }
+
+    /**
+     * @return how many times a snapshot had to be loaded from the provider
+     */
+    @VisibleForTesting
+    public static int getProviderLoadCount() {
+        return sProviderLoads.get();
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public int getCount() {
+        return mDays.size() - mStart;
+    }
+
+    /**
+     * @param position 0 for today
+     * @return the normalized date of the day
+     */
+    public long getDate(int position) {
+        return mDates[mStart + position];
+    }
+
+    /**
+     * @param position 0 for today
+     */
+    public ForecastDay getDay(int position) {
+        return mDays.get(mStart + position);
+    }
+
+    private ForecastSnapshot startingFrom(long today) {
+        int start = mStart;
+        while (start < mDates.length && mDates[start] < today) {
+            start++;
+        }
+        // Only allocates when a day has passed since the forecast was published
+        return start == mStart ? this : new ForecastSnapshot(mLocationSetting, mDates, mDays, start);
+    }
+
+    private static ForecastSnapshot load(Context context, String locationSetting, long today) {
+        sProviderLoads.incrementAndGet();
+        List<ForecastDay> days = new ArrayList<ForecastDay>(14);
+        long[] dates = new long[0];
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, today),
+                FORECAST_COLUMNS, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor != null) {
+            dates = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ForecastDay day = new ForecastDay();
+                day.weatherId = cursor.getInt(INDEX_WEATHER_ID);
+                day.description = cursor.getString(INDEX_SHORT_DESC);
+                day.high = cursor.getDouble(INDEX_MAX_TEMP);
+                day.low = cursor.getDouble(INDEX_MIN_TEMP);
+                dates[days.size()] = cursor.getLong(INDEX_DATE);
+                days.add(day);
+            }
+            cursor.close();
+        }
+        return new ForecastSnapshot(locationSetting, dates, days, 0);
+    }
+}
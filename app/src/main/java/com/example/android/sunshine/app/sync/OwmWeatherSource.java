@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.net.SharedHttpClient;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches the daily forecast from OpenWeatherMap, through the shared HTTP client so that
+ * consecutive fetches reuse the same kept-alive connection.
+ */
+class OwmWeatherSource implements WeatherSource {
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    private static final String QUERY_PARAM = "q";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    private static final int NUM_DAYS = 14;
+
+    // HTTP headers used for conditional requests
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    // A body with more than this left unread when we're done isn't worth draining
+    private static final int DRAIN_BUFFER_BYTES = 1024;
+    private static final int MAX_DRAIN_READS = 4;
+
+    private final SharedHttpClient mHttpClient;
+    private final String mBaseUrl;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+
+    /**
+     * @param connectTimeoutMs the longest to wait for the connection to be established
+     * @param readTimeoutMs the longest to wait for any single read of the response
+     */
+    OwmWeatherSource(SharedHttpClient httpClient, int connectTimeoutMs, int readTimeoutMs) {
+        this(httpClient, FORECAST_BASE_URL, connectTimeoutMs, readTimeoutMs);
+    }
+
+    /**
+     * @param baseUrl where to send forecast requests instead of OWM, such as a local server
+     *                replaying recorded responses
+     */
+    OwmWeatherSource(SharedHttpClient httpClient, String baseUrl, int connectTimeoutMs,
+                     int readTimeoutMs) {
+        mHttpClient = httpClient;
+        mBaseUrl = baseUrl;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    @Override
+    public Response fetch(String locationQuery, String etag, String lastModified,
+                          SyncDeadline deadline, final SyncStats stats) throws IOException {
+        deadline.check("connect");
+
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        SharedHttpClient.CallMetrics metrics = new SharedHttpClient.CallMetrics();
+        Request.Builder request = new Request.Builder()
+                .url(builtUri.toString())
+                .tag(SharedHttpClient.CallMetrics.class, metrics)
+                // Ask for a compressed body.  Setting this ourselves means we decode the gzip
+                // stream below, which is what lets us count the bytes that actually crossed the
+                // network.
+                .header(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+
+        // If we have validators from the last forecast we stored for this location, ask the
+        // server to only send the forecast again if it has changed since then.
+        if (etag != null) {
+            request.header(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            request.header(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+
+        // Neither stage may outlast the sync.  A body trickling in under the read timeout is cut
+        // off by the deadline stream below.  The derived client still shares the pool.
+        OkHttpClient client = mHttpClient.getClient().newBuilder()
+                .connectTimeout(deadline.timeoutMs(mConnectTimeoutMs), TimeUnit.MILLISECONDS)
+                .readTimeout(deadline.timeoutMs(mReadTimeoutMs), TimeUnit.MILLISECONDS)
+                .build();
+
+        // execute blocks until the status line and headers have arrived
+        final okhttp3.Response response = client.newCall(request.build()).execute();
+        long connectEnd = metrics.connectionAcquired != 0
+                ? metrics.connectionAcquired : metrics.callStart;
+        stats.addSpan(SyncStats.PHASE_CONNECT, metrics.callStart, connectEnd);
+        // Time spent opening a connection, none if a pooled one was picked up
+        stats.connectMs = metrics.connectMs;
+        stats.connectionReused = metrics.connectionReused;
+        stats.responseCode = response.code();
+        stats.ttfbMs = stats.endSpan(SyncStats.PHASE_RESPONSE, connectEnd) - metrics.callStart;
+
+        if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.close();
+            return new Response(HttpURLConnection.HTTP_NOT_MODIFIED, null, null, null);
+        }
+        if (!response.isSuccessful()) {
+            response.close();
+            // Same as HttpURLConnection.getInputStream for an error code
+            throw new IOException("Server returned HTTP response code: " + response.code());
+        }
+
+        boolean handedOff = false;
+        try {
+            final CountingInputStream wireStream =
+                    new CountingInputStream(deadline.wrap(response.body().byteStream()));
+            stats.compressed =
+                    ENCODING_GZIP.equalsIgnoreCase(response.header(HEADER_CONTENT_ENCODING));
+            final CountingInputStream decodedStream = new CountingInputStream(stats.compressed
+                    ? new GZIPInputStream(wireStream) : wireStream);
+
+            Response forecastResponse = new Response(HttpURLConnection.HTTP_OK, decodedStream,
+                    response.header(HEADER_ETAG), response.header(HEADER_LAST_MODIFIED)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        // The parser stops at the closing brace.  Only a body read to the end
+                        // lets the connection go back to the pool for the next request.
+                        if (drain(decodedStream) && stats.compressed) {
+                            drain(wireStream);
+                        }
+                    } finally {
+                        stats.wireBytes = wireStream.getCount();
+                        stats.decodedBytes = decodedStream.getCount();
+                        response.close();
+                    }
+                }
+            };
+            handedOff = true;
+            return forecastResponse;
+        } finally {
+            if (!handedOff) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Reads what is left of a stream, as long as that is only a little.
+     *
+     * @return true if the stream is now at its end
+     */
+    private static boolean drain(InputStream in) {
+        byte[] rest = new byte[DRAIN_BUFFER_BYTES];
+        try {
+            for (int i = 0; i < MAX_DRAIN_READS; i++) {
+                if (in.read(rest) == -1) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            // The connection can't be reused then
+        }
+        return false;
+    }
+}
@@ -12,6 +12,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.PeriodicSync;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -19,24 +20,29 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
+import android.support.v4.net.ConnectivityManagerCompat;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationIdCache;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+import com.example.android.sunshine.app.net.SharedHttpClient;
 import com.example.android.sunshine.common.CommonConstants;
+import com.example.android.sunshine.common.JulianDay;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.DataApi;
@@ -44,21 +50,22 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
 import java.util.UUID;
-import java.util.Vector;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.example.android.sunshine.common.CommonConstants.KEY_HIGH;
 import static com.example.android.sunshine.common.CommonConstants.KEY_ID_WEATHER;
@@ -73,24 +80,48 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
+
+    // Sync extra asking for every location in the location table to be refreshed now, not just
+    // the preferred one.  Periodic syncs don't carry it, they refresh every location only once
+    // sync_all_locations_interval_hours have passed.
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "all_locations";
+    // How many locations are fetched at once, and how long a sync of all locations may take
+    private static final int SYNC_ALL_MAX_WORKERS = 3;
+    private static final long SYNC_ALL_BUDGET_MS = 60 * 1000;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
     private GoogleApiClient mGoogleApiClient;
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    private static final String[] LOCATION_VALIDATORS_PROJECTION = new String[] {
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED
     };
 
     // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
+    private static final int INDEX_LOCATION_ETAG = 0;
+    private static final int INDEX_LOCATION_LAST_MODIFIED = 1;
+
+    // Attempts per sync, and the backoff between them before jitter
+    private static final int SYNC_MAX_ATTEMPTS = 3;
+    private static final long SYNC_RETRY_BASE_BACKOFF_MS = 1000;
+    private static final long SYNC_RETRY_MAX_BACKOFF_MS = 8000;
+    private static final Random sRetryRandom = new Random();
+
+    // How long each consumer of a new forecast may take before it is interrupted
+    private static final long FANOUT_WIDGETS_TIMEOUT_MS = 5 * 1000;
+    private static final long FANOUT_MUZEI_TIMEOUT_MS = 5 * 1000;
+    private static final long FANOUT_NOTIFY_TIMEOUT_MS = 20 * 1000;
+    private static final long FANOUT_WEAR_TIMEOUT_MS = 10 * 1000;
+
+    // Where forecasts come from, OWM unless a test passed in another source, and how long a sync
+    // of one location may take
+    private final WeatherSource mWeatherSource;
+    private final long mSyncDeadlineMs;
+
+    // How many syncs worth of transfer stats to keep in the sync log
+    private static final int SYNC_LOG_MAX_ROWS = 200;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -103,7 +134,22 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_INVALID = 4;
 
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        this(context, autoInitialize, createWeatherSource(context),
+                getDefaultSyncDeadlineMs(context));
+    }
+
+    /**
+     * @param weatherSource where forecasts are fetched from, such as a recording to sync without
+     * a network
+     * @param syncDeadlineMs how long a sync of one location may take, from connecting to the
+     * server until its forecast is stored
+     */
+    @VisibleForTesting
+    SunshineSyncAdapter(Context context, boolean autoInitialize, WeatherSource weatherSource,
+                        long syncDeadlineMs) {
         super(context, autoInitialize);
+        mWeatherSource = weatherSource;
+        mSyncDeadlineMs = syncDeadlineMs;
         if (mGoogleApiClient == null) {
             mGoogleApiClient = new GoogleApiClient.Builder(context)
                 .addApi(Wearable.API)
@@ -114,275 +160,460 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+        SyncRequestGate.onSyncStarted();
+        try {
+            if (extras != null && extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS, false)) {
+                syncAllLocations();
+            } else if (isAllLocationsSyncDue(getContext(), extras)) {
+                Log.d(LOG_TAG, "Saved locations are due a refresh, syncing all of them");
+                syncAllLocations();
+            } else {
+                syncLocation(Utility.getPreferredLocation(getContext()), true,
+                        SyncDeadline.in(mSyncDeadlineMs));
+            }
+        } finally {
+            SyncRequestGate.onSyncFinished(getContext());
+        }
+    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+    /**
+     * @return whether a sync the user didn't ask for should refresh every saved location, because
+     * the last time they all were is more than sync_all_locations_interval_hours ago
+     */
+    private static boolean isAllLocationsSyncDue(Context context, Bundle extras) {
+        if (extras != null && extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)) {
+            return false;
+        }
+        long intervalMs = context.getResources()
+                .getInteger(R.integer.sync_all_locations_interval_hours) * 60 * 60 * 1000L;
+        long last = PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(context.getString(R.string.pref_last_all_locations_sync_key), 0);
+        long now = System.currentTimeMillis();
+        // A clock set backwards would otherwise hold the saved locations off until it caught up
+        return now - last >= intervalMs || now < last;
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    /**
+     * Refreshes every location in the location table, not just the preferred one, so that
+     * switching back to a saved city is served straight from the provider.  Locations are
+     * synced in parallel on a small pool, each writing its forecast in one transaction.  Anything
+     * not started within SYNC_ALL_BUDGET_MS is left for the next run.
+     */
+    private void syncAllLocations() {
+        final String preferredLocation = Utility.getPreferredLocation(getContext());
+        final List<String> locationSettings = new ArrayList<String>();
+        // The preferred location goes first, it's the one the user is looking at
+        locationSettings.add(preferredLocation);
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                null);
+        if (locationCursor != null) {
+            while (locationCursor.moveToNext()) {
+                String locationSetting = locationCursor.getString(0);
+                if (!preferredLocation.equals(locationSetting)) {
+                    locationSettings.add(locationSetting);
+                }
+            }
+            locationCursor.close();
+        }
 
+        final SyncDeadline budget = SyncDeadline.in(SYNC_ALL_BUDGET_MS);
+        final long syncDeadlineMs = mSyncDeadlineMs;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(SYNC_ALL_MAX_WORKERS, locationSettings.size()));
+        for (final String locationSetting : locationSettings) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (budget.isExpired()) {
+                        Log.d(LOG_TAG, "Sync budget spent, skipping " + locationSetting);
+                        return;
+                    }
+                    // Expired days are pruned once for all locations below
+                    syncLocation(locationSetting, false, budget.within(syncDeadlineMs));
+                }
+            });
+        }
+        executor.shutdown();
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+            // Each location's own deadline is within the budget, this is just a backstop
+            if (!executor.awaitTermination(Math.max(budget.remainingMs(), 0),
+                    TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "Sync budget exceeded, abandoning remaining locations");
+                executor.shutdownNow();
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        deleteOldWeather();
+        PreferenceManager.getDefaultSharedPreferences(getContext()).edit()
+                .putLong(getContext().getString(R.string.pref_last_all_locations_sync_key),
+                        System.currentTimeMillis())
+                .commit();
+        Log.d(LOG_TAG, "Synced " + locationSettings.size() + " locations");
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "Connection reuse rate "
+                    + SharedHttpClient.getInstance().getReuseRate());
+        }
+    }
+
+    /**
+     * Downloads and stores the forecast for one location.
+     *
+     * @param locationQuery The location string used to request updates from the server.
+     * @param pruneOldDays whether to delete every other location's expired days afterwards too
+     * @param deadline when the sync must be done, from connecting through writing the forecast
+     */
+    private void syncLocation(String locationQuery, boolean pruneOldDays, SyncDeadline deadline) {
+        // What this sync costs on the network, recorded in the sync log once it's done
+        SyncStats stats = new SyncStats(locationQuery);
+        stats.metered = isActiveNetworkMetered();
+
+        SyncFanout fanout = new SyncFanout(getContext().getContentResolver(), stats);
+
+        SyncCircuitBreaker breaker = SyncCircuitBreaker.getInstance();
+        if (!breaker.allowRequest()) {
+            // The server has been failing, don't spend radio time finding out it still is
+            Log.d(LOG_TAG, "Circuit open, skipping sync of " + locationQuery);
+            stats.outcome = SyncStats.OUTCOME_CIRCUIT_OPEN;
+            setLocationStatus(stats, LOCATION_STATUS_SERVER_DOWN);
+            recordSyncStats(stats);
+            return;
+        }
+
+        // Whether the breaker was told how this attempt went.  Anything unexpected thrown before
+        // then still counts as a failure, or a half open breaker would wait on it.
+        boolean breakerReported = false;
+        try {
+            // If we have validators from the last forecast we stored for this location, ask the
+            // source to only send the forecast again if it has changed since then.
+            String[] validators = getLocationValidators(locationQuery);
+            Forecast forecast = fetchForecastWithRetries(locationQuery,
+                    validators != null ? validators[0] : null,
+                    validators != null ? validators[1] : null,
+                    deadline, stats);
+            breaker.onSuccess();
+            breakerReported = true;
+
+            if (forecast == null) {
+                // What we have stored is still current.  Nothing to parse, write or fan out.
+                Log.d(LOG_TAG, "Sync Complete. Forecast not modified");
+                stats.outcome = SyncStats.OUTCOME_NOT_MODIFIED;
+                setLocationStatus(stats, LOCATION_STATUS_OK);
+                adaptSyncInterval(locationQuery, stats, false);
+                return;
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            // Better to keep the old forecast than to hold the sync past its deadline writing it.
+            // The server answered, so this is no reason to think it's down.
+            if (deadline.isExpired()) {
+                Log.d(LOG_TAG, "Sync deadline reached before storing, keeping the stored forecast");
+                stats.outcome = SyncStats.OUTCOME_DEADLINE;
                 return;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+            ForecastDiff diff = storeForecast(forecast, stats, pruneOldDays, fanout);
+            if (diff != null) {
+                adaptSyncInterval(locationQuery, stats, diff.hasChanges());
+            }
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            breaker.onFailure();
+            breakerReported = true;
+            setLocationStatus(stats, LOCATION_STATUS_SERVER_DOWN);
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            breaker.onFailure();
+            breakerReported = true;
+            setLocationStatus(stats, LOCATION_STATUS_SERVER_INVALID);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            if (!breakerReported) {
+                breaker.onFailure();
             }
+            long syncId = recordSyncStats(stats);
+            // The fanout may still be running, its spans are added once it's done
+            fanout.onSyncLogged(syncId);
         }
         return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetches and parses a forecast, retrying with jittered exponential backoff while the
+     * failure looks transient: no response at all, a cut off body or a server error.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return the forecast, or null if the stored one is still current
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
-
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+    private Forecast fetchForecastWithRetries(String locationQuery, String etag,
+                                              String lastModified, SyncDeadline deadline,
+                                              SyncStats stats)
+            throws IOException, JSONException {
+        for (int attempt = 1; ; attempt++) {
+            stats.responseCode = 0;
+            try {
+                return fetchForecast(locationQuery, etag, lastModified, deadline, stats);
+            } catch (IOException e) {
+                boolean transientFailure = stats.responseCode == 0
+                        || stats.responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                        || stats.responseCode == HttpURLConnection.HTTP_OK;
+                if (!transientFailure || attempt >= SYNC_MAX_ATTEMPTS) {
+                    throw e;
+                }
+                // Full jitter: anywhere up to the exponential step, so that devices that failed
+                // together don't all come back together
+                long backoffMs = (long) (sRetryRandom.nextDouble()
+                        * Math.min(SYNC_RETRY_MAX_BACKOFF_MS,
+                                SYNC_RETRY_BASE_BACKOFF_MS << (attempt - 1)));
+                if (backoffMs >= deadline.remainingMs()) {
+                    // No time left for another attempt
+                    throw e;
+                }
+                Log.d(LOG_TAG, "Attempt " + attempt + " failed (" + e.getMessage()
+                        + "), retrying in " + backoffMs + "ms");
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
                 }
             }
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    private Forecast fetchForecast(String locationQuery, String etag, String lastModified,
+                                   SyncDeadline deadline, SyncStats stats)
+            throws IOException, JSONException {
+        WeatherSource.Response response =
+                mWeatherSource.fetch(locationQuery, etag, lastModified, deadline, stats);
+        try {
+            if (response.code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return null;
+            }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+            // Parse the forecast as it comes off the wire rather than buffering the whole body.
+            // A body that was empty or cut short ends in an EOFException.
+            long transferStart = SystemClock.elapsedRealtime();
+            try {
+                Forecast forecast = ForecastParser.parse(response.body);
+                forecast.etag = response.etag;
+                forecast.lastModified = response.lastModified;
+                return forecast;
+            } finally {
+                stats.transferMs =
+                        stats.endSpan(SyncStats.PHASE_DOWNLOAD_PARSE, transferStart) - transferStart;
+            }
+        } finally {
+            response.close();
+        }
+    }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+    private static WeatherSource createWeatherSource(Context context) {
+        Resources resources = context.getResources();
+        return new OwmWeatherSource(SharedHttpClient.getInstance(),
+                resources.getInteger(R.integer.sync_connect_timeout_seconds) * 1000,
+                resources.getInteger(R.integer.sync_read_timeout_seconds) * 1000);
+    }
 
-                double high;
-                double low;
+    /**
+     * @return the configured time a sync of one location may take, from connecting to the server
+     * until its forecast is stored
+     */
+    static long getDefaultSyncDeadlineMs(Context context) {
+        return context.getResources().getInteger(R.integer.sync_deadline_seconds) * 1000L;
+    }
 
-                String description;
-                int weatherId;
+    /**
+     * Writes the network cost, outcome and phase timings of a sync to the sync log and sync
+     * span tables, dropping the oldest entries so they never cover more than SYNC_LOG_MAX_ROWS
+     * syncs.
+     *
+     * @return the row ID of the sync in the sync log
+     */
+    private long recordSyncStats(SyncStats stats) {
+        Log.d(LOG_TAG, "Sync transfer: " + stats.wireBytes + " bytes on the wire, "
+                + stats.decodedBytes + " decoded, connect " + stats.connectMs + "ms, ttfb "
+                + stats.ttfbMs + "ms, transfer " + stats.transferMs + "ms");
+        ContentResolver resolver = getContext().getContentResolver();
+        Uri logUri = resolver.insert(WeatherContract.SyncLogEntry.CONTENT_URI, stats.toContentValues());
+        long logId = ContentUris.parseId(logUri);
+        resolver.bulkInsert(WeatherContract.SyncSpanEntry.CONTENT_URI,
+                stats.spansToContentValues(logId));
+
+        String[] expiredArgs = new String[]{Long.toString(logId - SYNC_LOG_MAX_ROWS)};
+        resolver.delete(WeatherContract.SyncSpanEntry.CONTENT_URI,
+                WeatherContract.SyncSpanEntry.COLUMN_SYNC_ID + " <= ?", expiredArgs);
+        resolver.delete(WeatherContract.SyncLogEntry.CONTENT_URI,
+                WeatherContract.SyncLogEntry._ID + " <= ?", expiredArgs);
+        return logId;
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    private boolean isActiveNetworkMetered() {
+        ConnectivityManager cm =
+                (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        return ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * Take the parsed forecast and write it to the database, then start letting everything that
+     * displays the weather know there is new data.
+     *
+     * @param stats where the phases of storing and fanning out are timed
+     * @param pruneOldDays whether to delete every other location's expired days afterwards too
+     * @param fanout where the widgets, Muzei, notification and wearable updates are started
+     * @return what was written, or null if the server reported an error instead of a forecast
+     */
+    private ForecastDiff storeForecast(Forecast forecast, SyncStats stats, boolean pruneOldDays,
+                                       SyncFanout fanout) {
+        String locationSetting = stats.locationSetting;
+        // do we have an error?
+        switch (forecast.messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                setLocationStatus(stats, LOCATION_STATUS_INVALID);
+                return null;
+            default:
+                setLocationStatus(stats, LOCATION_STATUS_SERVER_DOWN);
+                return null;
+        }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+        long phaseStart = SystemClock.elapsedRealtime();
+        long locationId = addLocation(locationSetting, forecast.cityName,
+                forecast.cityLatitude, forecast.cityLongitude);
+        phaseStart = stats.endSpan(SyncStats.PHASE_ADD_LOCATION, phaseStart);
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        // Only the preferred location is shown by the widgets, Muzei, notification and wearable
+        boolean preferred = isPreferredLocation(locationSetting);
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
 
-                ContentValues weatherValues = new ContentValues();
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        TimeZone zone = TimeZone.getDefault();
 
-                cVVector.add(weatherValues);
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = JulianDay.fromMillis(System.currentTimeMillis(), zone);
 
+        int numDays = forecast.days.size();
+        long[] dates = new long[numDays];
+        for (int i = 0; i < numDays; i++) {
+            // Already normalized: the start of each local day
+            dates[i] = JulianDay.toMillis(julianStartDay + i, zone);
+        }
 
-                //update wearable with first value as latest
-                if(i==0){
-                    updateWear(high,low,weatherId);
-                }
+        // Only write the days that are new or whose values changed, so an unchanged forecast
+        // doesn't make every observer of the weather table requery.
+        ForecastDiff diff = ForecastDiff.compute(getContext().getContentResolver(),
+                locationId, dates, forecast.days);
+        phaseStart = stats.endSpan(SyncStats.PHASE_DIFF, phaseStart);
+
+        // add to database, and drop the location's days before today, all in one transaction
+        // and with one notification
+        if (numDays > 0) {
+            ContentValues[] cvArray = new ContentValues[diff.changedRows.size()];
+            diff.changedRows.toArray(cvArray);
+            getContext().getContentResolver().bulkInsert(
+                    WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                            locationSetting, dates[0]), cvArray);
+            phaseStart = stats.endSpan(SyncStats.PHASE_BULK_INSERT, phaseStart);
+        }
+        if (preferred && numDays > 0) {
+            // What the widgets, Muzei and the notification read instead of querying for it again
+            ForecastSnapshot.publish(locationSetting, dates, forecast.days);
+        }
 
+        if (numDays > 0) {
+            if (pruneOldDays) {
+                // This location's days are gone already, this catches any other's.  It only
+                // notifies if it finds some.
+                deleteOldWeather();
+                phaseStart = stats.endSpan(SyncStats.PHASE_DELETE, phaseStart);
             }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+            // Only remember the validators once the forecast they describe is safely stored
+            updateLocationValidators(locationId, forecast.etag, forecast.lastModified);
+            stats.endSpan(SyncStats.PHASE_VALIDATORS, phaseStart);
+
+            if (preferred) {
+                // The forecast is committed, everything else happens off the sync thread
+                if (diff.hasChanges()) {
+                    fanout.add(SyncStats.PHASE_UPDATE_WIDGETS, FANOUT_WIDGETS_TIMEOUT_MS,
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    updateWidgets();
+                                }
+                            });
+                    fanout.add(SyncStats.PHASE_UPDATE_MUZEI, FANOUT_MUZEI_TIMEOUT_MS,
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    updateMuzei();
+                                }
+                            });
+                }
+                fanout.add(SyncStats.PHASE_NOTIFY_WEATHER, FANOUT_NOTIFY_TIMEOUT_MS,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                // Leave time to fall back to the bundled art and still notify
+                                notifyWeather(SyncDeadline.in(FANOUT_NOTIFY_TIMEOUT_MS / 2));
+                            }
+                        });
+                // update wearable with first value as latest
+                final ForecastDay today = forecast.days.get(0);
+                fanout.add(SyncStats.PHASE_UPDATE_WEAR, FANOUT_WEAR_TIMEOUT_MS,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                updateWear(today.high, today.low, today.weatherId);
+                            }
+                        });
+                fanout.start();
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + diff);
+        stats.outcome = diff.hasChanges() ? SyncStats.OUTCOME_UPDATED : SyncStats.OUTCOME_UNCHANGED;
+        setLocationStatus(stats, LOCATION_STATUS_OK);
+        return diff;
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * Lets the periodic sync interval follow how often the preferred location's forecast
+     * actually changes, and records the outcome in the sync log.
+     */
+    private void adaptSyncInterval(String locationSetting, SyncStats stats, boolean changed) {
+        if (!isPreferredLocation(locationSetting)) {
+            return;
         }
+        stats.changed = changed;
+        stats.syncInterval = AdaptiveSyncScheduler.onSyncSucceeded(getContext(), changed);
+    }
+
+    /**
+     * Deletes days before today (in local time) so we don't build up an endless history.
+     */
+    private void deleteOldWeather() {
+        TimeZone zone = TimeZone.getDefault();
+        int julianStartDay = JulianDay.fromMillis(System.currentTimeMillis(), zone);
+
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[] {Long.toString(JulianDay.toMillis(julianStartDay - 1, zone))});
+    }
+
+    private boolean isPreferredLocation(String locationSetting) {
+        return locationSetting.equals(Utility.getPreferredLocation(getContext()));
     }
 
     private void updateWidgets() {
@@ -403,7 +634,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void notifyWeather() {
+    private void notifyWeather(SyncDeadline deadline) {
         Context context = getContext();
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -418,18 +649,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                // The sync that got us here has just published today's forecast
+                ForecastSnapshot snapshot = ForecastSnapshot.getLatest(context);
+                long today = WeatherContract.normalizeDate(System.currentTimeMillis());
 
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (snapshot.getCount() > 0 && snapshot.getDate(0) == today) {
+                    ForecastDay day = snapshot.getDay(0);
+                    int weatherId = day.weatherId;
+                    double high = day.high;
+                    double low = day.low;
+                    String desc = day.description;
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -455,8 +684,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                                 .asBitmap()
                                 .error(artResourceId)
                                 .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
+                                .into(largeIconWidth, largeIconHeight)
+                                .get(Math.max(deadline.remainingMs(), 0), TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException | ExecutionException | TimeoutException e) {
                         Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
                         largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                     }
@@ -505,7 +735,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
@@ -520,7 +749,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+        // Past the first sync of a location, its ID is known without asking the database
+        LocationIdCache locationIds = LocationIdCache.getInstance();
+        long locationId = locationIds.get(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        int generation = locationIds.getGeneration();
 
         // First, check if the location with this city name exists in the db
         Cursor locationCursor = getContext().getContentResolver().query(
@@ -556,34 +791,106 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
 
         locationCursor.close();
+        locationIds.put(locationSetting, locationId, generation);
         // Wait, that worked?  Yes!
         return locationId;
     }
 
     /**
-     * Helper method to schedule the sync adapter periodic execution
+     * Helper method to look up the HTTP validators saved with the last forecast for a location.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @return {ETag, Last-Modified}, either of which may be null, or null if the location has
+     * never been synced.
+     */
+    String[] getLocationValidators(String locationSetting) {
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                LOCATION_VALIDATORS_PROJECTION,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (locationCursor == null) {
+            return null;
+        }
+        try {
+            if (!locationCursor.moveToFirst()) {
+                return null;
+            }
+            return new String[]{
+                    locationCursor.getString(INDEX_LOCATION_ETAG),
+                    locationCursor.getString(INDEX_LOCATION_LAST_MODIFIED)
+            };
+        } finally {
+            locationCursor.close();
+        }
+    }
+
+    /**
+     * Helper method to save the HTTP validators of the forecast just stored for a location.
+     * Missing validators are cleared so we never send ones that no longer match our data.  The
+     * row is left alone (and nobody notified) when the validators haven't changed.
+     */
+    void updateLocationValidators(long locationId, String etag, String lastModified) {
+        ContentValues validatorValues = new ContentValues(2);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_ETAG, etag);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified);
+        getContext().getContentResolver().update(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                validatorValues,
+                WeatherContract.LocationEntry._ID + " = ? AND (" +
+                        "IFNULL(" + WeatherContract.LocationEntry.COLUMN_ETAG + ", '') != ? OR " +
+                        "IFNULL(" + WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED + ", '') != ?)",
+                new String[]{Long.toString(locationId),
+                        etag == null ? "" : etag,
+                        lastModified == null ? "" : lastModified});
+    }
+
+    /**
+     * Helper method to schedule the sync adapter periodic execution, replacing whatever periodic
+     * sync was scheduled before.
      */
     public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
         Account account = getSyncAccount(context);
         String authority = context.getString(R.string.content_authority);
+        // The framework tells periodic syncs apart by their extras, so one registered with other
+        // extras (an earlier version asked for all locations) would keep running next to this one
+        removePeriodicSyncs(account, authority);
+        // Periodic syncs refresh the preferred location; onPerformSync decides when the other
+        // saved locations are due too, on a much longer cadence
+        Bundle extras = new Bundle();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // we can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder().
                     syncPeriodic(syncInterval, flexTime).
                     setSyncAdapter(account, authority).
-                    setExtras(new Bundle()).build();
+                    setExtras(extras).build();
             ContentResolver.requestSync(request);
         } else {
             ContentResolver.addPeriodicSync(account,
-                    authority, new Bundle(), syncInterval);
+                    authority, extras, syncInterval);
         }
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Removes every periodic sync of the account and authority, however it was registered.
+     */
+    private static void removePeriodicSyncs(Account account, String authority) {
+        for (PeriodicSync periodicSync : ContentResolver.getPeriodicSyncs(account, authority)) {
+            ContentResolver.removePeriodicSync(account, authority, periodicSync.extras);
+        }
+    }
+
+    /**
+     * Helper method to have the sync adapter sync immediately, or as soon as there is a network
+     * if the device is offline.  Callers reacting to events that may repeat (the watch, settings)
+     * should go through SyncRequestGate instead.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        if (DeferredSyncQueue.deferIfOffline(context)) {
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -664,6 +971,22 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         spe.commit();
     }
 
+    /**
+     * Records the location status of a sync, and sets it into shared preference if the sync was
+     * for the preferred location.  The preference only ever describes the preferred location, so
+     * results for other locations are only kept in the sync log.
+     */
+    private void setLocationStatus(SyncStats stats, @LocationStatus int locationStatus) {
+        stats.locationStatus = locationStatus;
+        if (isPreferredLocation(stats.locationSetting)) {
+            setLocationStatus(getContext(), locationStatus);
+            if (locationStatus == LOCATION_STATUS_OK) {
+                // Lets SyncRequestGate serve requests from the provider for a while
+                SyncRequestGate.recordSuccessfulSync(getContext());
+            }
+        }
+    }
+
     private void updateWear(double high, double low, int weatherId) {
         Log.d(LOG_TAG, "Updating Weather data in Wearable");
 
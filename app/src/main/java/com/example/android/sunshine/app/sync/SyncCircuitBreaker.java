@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Stops syncs from reaching the weather server while it keeps failing.
+ *
+ * After FAILURE_THRESHOLD failed syncs in a row the breaker opens, and syncs fail straight away
+ * without touching the network.  Once the open period is over a single trial sync is let
+ * through: if it succeeds the breaker closes, otherwise it opens again for twice as long, up to
+ * a maximum.  A trial that is never reported doesn't hold the breaker half open for good: after
+ * another open period, the next sync becomes the trial.
+ */
+class SyncCircuitBreaker {
+    private static final String LOG_TAG = SyncCircuitBreaker.class.getSimpleName();
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_MS = 60 * 1000;
+    private static final long MAX_OPEN_MS = 30 * 60 * 1000;
+
+    private static final SyncCircuitBreaker sInstance =
+            new SyncCircuitBreaker(FAILURE_THRESHOLD, OPEN_MS, MAX_OPEN_MS);
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    private final int mFailureThreshold;
+    private final long mOpenMs;
+    private final long mMaxOpenMs;
+
+    private int mState = STATE_CLOSED;
+    private int mConsecutiveFailures;
+    private long mCurrentOpenMs;
+    // elapsedRealtime at which an open breaker lets a trial sync through, or a half open one gives
+    // up on its trial and lets another through
+    private long mRetryAt;
+
+    /**
+     * @return the breaker guarding the weather server
+     */
+    static SyncCircuitBreaker getInstance() {
+        return sInstance;
+    }
+
+    SyncCircuitBreaker(int failureThreshold, long openMs, long maxOpenMs) {
+        mFailureThreshold = failureThreshold;
+        mOpenMs = openMs;
+        mMaxOpenMs = maxOpenMs;
+        mCurrentOpenMs = openMs;
+    }
+
+    /**
+     * Called before going to the network.
+     *
+     * @return false if the sync should fail without trying
+     */
+    synchronized boolean allowRequest() {
+        switch (mState) {
+            case STATE_OPEN:
+                if (SystemClock.elapsedRealtime() < mRetryAt) {
+                    return false;
+                }
+                Log.d(LOG_TAG, "Letting a trial sync through");
+                mState = STATE_HALF_OPEN;
+                mRetryAt = SystemClock.elapsedRealtime() + mCurrentOpenMs;
+                return true;
+            case STATE_HALF_OPEN:
+                // Only the trial sync goes out until we know how it went
+                if (SystemClock.elapsedRealtime() < mRetryAt) {
+                    return false;
+                }
+                Log.w(LOG_TAG, "Trial sync never reported back, letting another through");
+                mRetryAt = SystemClock.elapsedRealtime() + mCurrentOpenMs;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Called when the server answered with a usable response.
+     */
+    synchronized void onSuccess() {
+        if (mState != STATE_CLOSED) {
+            Log.d(LOG_TAG, "Server is back, closing");
+        }
+        mState = STATE_CLOSED;
+        mConsecutiveFailures = 0;
+        mCurrentOpenMs = mOpenMs;
+    }
+
+    /**
+     * Called when a sync failed after all its retries.
+     */
+    synchronized void onFailure() {
+        mConsecutiveFailures++;
+        if (mState == STATE_HALF_OPEN) {
+            // The trial failed, stay away for longer this time
+            mCurrentOpenMs = Math.min(mCurrentOpenMs * 2, mMaxOpenMs);
+            open();
+        } else if (mState == STATE_CLOSED && mConsecutiveFailures >= mFailureThreshold) {
+            open();
+        }
+    }
+
+    synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Closes the breaker and forgets past failures.
+     */
+    synchronized void reset() {
+        onSuccess();
+    }
+
+    private void open() {
+        Log.w(LOG_TAG, mConsecutiveFailures + " failed syncs, opening for " + mCurrentOpenMs + "ms");
+        mState = STATE_OPEN;
+        mRetryAt = SystemClock.elapsedRealtime() + mCurrentOpenMs;
+    }
+}
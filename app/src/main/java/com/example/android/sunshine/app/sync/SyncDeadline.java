@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * The point in time by which a sync has to be done, handed down through every stage of it so
+ * that no single stage can hold the sync thread, and its wakelock, past it.
+ */
+class SyncDeadline {
+    // elapsedRealtime by which the sync must be done
+    private final long mDeadline;
+
+    private SyncDeadline(long deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * @return a deadline ms milliseconds from now
+     */
+    static SyncDeadline in(long ms) {
+        return new SyncDeadline(SystemClock.elapsedRealtime() + ms);
+    }
+
+    /**
+     * @return whichever of this deadline and one ms milliseconds from now comes first
+     */
+    SyncDeadline within(long ms) {
+        return new SyncDeadline(Math.min(mDeadline, SystemClock.elapsedRealtime() + ms));
+    }
+
+    long remainingMs() {
+        return mDeadline - SystemClock.elapsedRealtime();
+    }
+
+    boolean isExpired() {
+        return remainingMs() <= 0;
+    }
+
+    /**
+     * Throws if the deadline has passed, so the stage about to start doesn't.
+     *
+     * @param stage what was about to start, for the exception message
+     */
+    void check(String stage) throws InterruptedIOException {
+        if (isExpired()) {
+            throw new InterruptedIOException("Sync deadline exceeded before " + stage);
+        }
+    }
+
+    /**
+     * Shortens a stage timeout to what is left of the deadline.
+     *
+     * @param stageTimeoutMs the longest the stage may take on its own
+     * @return a timeout of at least 1ms, as 0 would mean no timeout at all
+     */
+    int timeoutMs(int stageTimeoutMs) {
+        return (int) Math.max(1, Math.min(stageTimeoutMs, remainingMs()));
+    }
+
+    /**
+     * Wraps a stream so that reads fail once the deadline has passed, however slowly the bytes
+     * keep trickling in.
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                check("read");
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                check("read");
+                return in.read(buffer, offset, count);
+            }
+
+            @Override
+            public long skip(long byteCount) throws IOException {
+                check("read");
+                return in.skip(byteCount);
+            }
+        };
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncSpanEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets everything that shows the weather know about a freshly stored forecast, once it is
+ * committed, without holding up the sync.
+ *
+ * Each consumer runs on its own thread, concurrently with the others and with the rest of the
+ * sync, and is cancelled if it runs past its timeout.  A consumer that throws or hangs doesn't
+ * keep the others from running.  How long each one took is written to the sync span table once
+ * they are all done and the sync has been logged.
+ */
+class SyncFanout {
+    private static final String LOG_TAG = SyncFanout.class.getSimpleName();
+
+    private static final ExecutorService sConsumerExecutor =
+            Executors.newCachedThreadPool(new NamedThreadFactory("SyncFanout"));
+    private static final ScheduledExecutorService sWatchdog =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("FanoutWatchdog"));
+
+    private final ContentResolver mResolver;
+    private final long mSyncStartElapsed;
+    private final List<Consumer> mConsumers = new ArrayList<Consumer>();
+
+    private final Object mLock = new Object();
+    private boolean mStarted;
+    private int mPending;
+    private long mSyncId = -1;
+    private boolean mRecorded;
+
+    /**
+     * @param stats the sync the fanout belongs to, for the span offsets
+     */
+    SyncFanout(ContentResolver resolver, SyncStats stats) {
+        mResolver = resolver;
+        mSyncStartElapsed = stats.startElapsed;
+    }
+
+    /**
+     * Adds a consumer.  Consumers must be added before the fanout is started.
+     *
+     * @param phase the sync span phase the consumer is timed as
+     * @param timeoutMs how long the consumer may run before it is interrupted
+     */
+    void add(String phase, long timeoutMs, Runnable consumer) {
+        mConsumers.add(new Consumer(phase, timeoutMs, consumer));
+    }
+
+    /**
+     * Starts every consumer and returns straight away.
+     */
+    void start() {
+        synchronized (mLock) {
+            mStarted = true;
+            mPending = mConsumers.size();
+        }
+        for (final Consumer consumer : mConsumers) {
+            consumer.mStart = SystemClock.elapsedRealtime();
+            final Future<?> future = sConsumerExecutor.submit(consumer);
+            sWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (consumer.finish(true)) {
+                        Log.w(LOG_TAG, consumer.mPhase + " timed out after "
+                                + consumer.mTimeoutMs + "ms");
+                        future.cancel(true);
+                    }
+                }
+            }, consumer.mTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        // Nothing to wait for if there were no consumers
+        maybeRecordSpans();
+    }
+
+    /**
+     * Tells the fanout which sync log row its spans belong to.  They are written as soon as the
+     * last consumer is done, or now if they all are.
+     */
+    void onSyncLogged(long syncId) {
+        synchronized (mLock) {
+            mSyncId = syncId;
+        }
+        maybeRecordSpans();
+    }
+
+    private void onConsumerFinished() {
+        synchronized (mLock) {
+            mPending--;
+        }
+        maybeRecordSpans();
+    }
+
+    private void maybeRecordSpans() {
+        synchronized (mLock) {
+            if (!mStarted || mPending > 0 || mSyncId < 0 || mRecorded || mConsumers.isEmpty()) {
+                return;
+            }
+            mRecorded = true;
+        }
+        ContentValues[] spans = new ContentValues[mConsumers.size()];
+        for (int i = 0; i < spans.length; i++) {
+            Consumer consumer = mConsumers.get(i);
+            ContentValues values = new ContentValues(4);
+            values.put(SyncSpanEntry.COLUMN_SYNC_ID, mSyncId);
+            values.put(SyncSpanEntry.COLUMN_PHASE, consumer.mPhase);
+            values.put(SyncSpanEntry.COLUMN_START_OFFSET_MS, consumer.mStart - mSyncStartElapsed);
+            values.put(SyncSpanEntry.COLUMN_DURATION_MS, consumer.mDurationMs);
+            spans[i] = values;
+        }
+        mResolver.bulkInsert(SyncSpanEntry.CONTENT_URI, spans);
+    }
+
+    private class Consumer implements Runnable {
+        final String mPhase;
+        final long mTimeoutMs;
+        final Runnable mConsumer;
+        volatile long mStart;
+        volatile long mDurationMs;
+        private boolean mFinished;
+
+        Consumer(String phase, long timeoutMs, Runnable consumer) {
+            mPhase = phase;
+            mTimeoutMs = timeoutMs;
+            mConsumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mConsumer.run();
+            } catch (RuntimeException e) {
+                // One broken consumer shouldn't take the others, or the sync, down with it
+                Log.e(LOG_TAG, mPhase + " failed", e);
+            } finally {
+                finish(false);
+            }
+        }
+
+        /**
+         * Marks the consumer done, either because it returned or because it timed out.
+         *
+         * @return true if it wasn't done already
+         */
+        boolean finish(boolean timedOut) {
+            synchronized (this) {
+                if (mFinished) {
+                    return false;
+                }
+                mFinished = true;
+                mDurationMs = timedOut ? mTimeoutMs : SystemClock.elapsedRealtime() - mStart;
+            }
+            onConsumerFinished();
+            return true;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+            // Never keep the process alive just for a notification
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+/**
+ * Decides whether a request for an immediate sync actually needs one.  The watch asks for a sync
+ * every time it becomes visible, and settings add their own, so without this a glance at
+ * the watch can set off a burst of identical full syncs.
+ *
+ * A request is dropped when:
+ * <ul>
+ * <li>a sync is already running: it will deliver fresh data anyway</li>
+ * <li>another request was accepted within the coalescing window: that sync is still pending</li>
+ * <li>the last successful sync is younger than the maximum cache age: the provider is current</li>
+ * </ul>
+ * Forced requests (the location changed, so what we have is for the wrong place) skip the last
+ * two checks, and one arriving while a sync is running queues a single follow-up sync.
+ */
+public class SyncRequestGate {
+    private static final String LOG_TAG = SyncRequestGate.class.getSimpleName();
+
+    private static final Object sLock = new Object();
+    private static boolean sSyncInFlight;
+    private static boolean sFollowUpRequested;
+    // elapsedRealtime of the last request we passed on, 0 if none yet
+    private static long sLastAcceptedRequest;
+
+    /**
+     * Requests an immediate sync unless it would be redundant.
+     *
+     * @param force true if the stored forecast can't be used no matter how recent it is
+     * @return true if a sync was requested
+     */
+    public static boolean requestSync(Context context, boolean force) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sLock) {
+            if (sSyncInFlight) {
+                if (force) {
+                    sFollowUpRequested = true;
+                }
+                Log.d(LOG_TAG, "Sync in flight, joining it");
+                return false;
+            }
+            if (!force) {
+                long windowMs = context.getResources()
+                        .getInteger(R.integer.sync_coalesce_window_seconds) * 1000L;
+                if (sLastAcceptedRequest != 0 && now - sLastAcceptedRequest < windowMs) {
+                    Log.d(LOG_TAG, "Sync already requested, coalescing");
+                    return false;
+                }
+                long maxAgeMs = context.getResources()
+                        .getInteger(R.integer.sync_max_cache_age_seconds) * 1000L;
+                long age = System.currentTimeMillis() - getLastSuccessfulSync(context);
+                if (age >= 0 && age < maxAgeMs) {
+                    Log.d(LOG_TAG, "Last sync " + age / 1000 + "s ago, serving from cache");
+                    return false;
+                }
+            }
+            sLastAcceptedRequest = now;
+        }
+        SunshineSyncAdapter.syncImmediately(context);
+        return true;
+    }
+
+    /**
+     * Called by the sync adapter when it starts syncing.
+     */
+    static void onSyncStarted() {
+        synchronized (sLock) {
+            sSyncInFlight = true;
+        }
+    }
+
+    /**
+     * Called by the sync adapter when it is done, whether or not it succeeded.  Starts the
+     * follow-up sync if a forced request arrived in the meantime.
+     */
+    static void onSyncFinished(Context context) {
+        boolean followUp;
+        synchronized (sLock) {
+            sSyncInFlight = false;
+            followUp = sFollowUpRequested;
+            sFollowUpRequested = false;
+            if (followUp) {
+                sLastAcceptedRequest = SystemClock.elapsedRealtime();
+            }
+        }
+        if (followUp) {
+            SunshineSyncAdapter.syncImmediately(context);
+        }
+    }
+
+    /**
+     * Records that the preferred location's forecast was just confirmed current.  This function
+     * should not be called from the UI thread because it uses commit to write to the shared
+     * preferences.
+     */
+    static void recordSuccessfulSync(Context context) {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(context).edit();
+        editor.putLong(context.getString(R.string.pref_last_sync_key), System.currentTimeMillis());
+        editor.commit();
+    }
+
+    /**
+     * @return when the preferred location was last synced successfully, in milliseconds since
+     * the epoch, or 0 if never
+     */
+    public static long getLastSuccessfulSync(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getLong(context.getString(R.string.pref_last_sync_key), 0);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncSpanEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a single sync cost on the network and how long each of its phases took, filled in by the
+ * sync adapter as it goes and written to the sync log and sync span tables when it finishes.
+ */
+class SyncStats {
+    // Phases of a sync, as stored in SyncSpanEntry.COLUMN_PHASE
+    static final String PHASE_CONNECT = "connect";
+    static final String PHASE_RESPONSE = "response";
+    static final String PHASE_DOWNLOAD_PARSE = "download_parse";
+    static final String PHASE_ADD_LOCATION = "add_location";
+    static final String PHASE_DIFF = "diff";
+    static final String PHASE_BULK_INSERT = "bulk_insert";
+    static final String PHASE_DELETE = "delete";
+    static final String PHASE_VALIDATORS = "validators";
+    static final String PHASE_UPDATE_WIDGETS = "update_widgets";
+    static final String PHASE_UPDATE_MUZEI = "update_muzei";
+    static final String PHASE_NOTIFY_WEATHER = "notify_weather";
+    static final String PHASE_UPDATE_WEAR = "update_wear";
+
+    // Outcomes, as stored in SyncLogEntry.COLUMN_OUTCOME
+    static final String OUTCOME_UPDATED = "updated";
+    static final String OUTCOME_UNCHANGED = "unchanged";
+    static final String OUTCOME_NOT_MODIFIED = "not_modified";
+    static final String OUTCOME_FAILED = "failed";
+    static final String OUTCOME_CIRCUIT_OPEN = "circuit_open";
+    static final String OUTCOME_DEADLINE = "deadline";
+
+    final long start;
+    final long startElapsed;
+    final String locationSetting;
+
+    String outcome = OUTCOME_FAILED;
+    @SunshineSyncAdapter.LocationStatus
+    int locationStatus = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+
+    int responseCode;
+    long wireBytes;
+    long decodedBytes;
+    boolean compressed;
+    boolean metered;
+    boolean connectionReused;
+    long connectMs;
+    long ttfbMs;
+    long transferMs;
+    boolean changed;
+    int syncInterval;
+
+    private final List<String> mSpanPhases = new ArrayList<String>();
+    private final List<long[]> mSpanTimes = new ArrayList<long[]>();
+
+    SyncStats(String locationSetting) {
+        this.start = System.currentTimeMillis();
+        this.startElapsed = SystemClock.elapsedRealtime();
+        this.locationSetting = locationSetting;
+    }
+
+    /**
+     * Records a phase that started at phaseStart (elapsedRealtime) and ends now.
+     *
+     * @return now, so consecutive phases can be timed from the returned value
+     */
+    long endSpan(String phase, long phaseStart) {
+        long now = SystemClock.elapsedRealtime();
+        addSpan(phase, phaseStart, now);
+        return now;
+    }
+
+    /**
+     * Records a phase that ran from phaseStart to phaseEnd (elapsedRealtime).
+     */
+    void addSpan(String phase, long phaseStart, long phaseEnd) {
+        mSpanPhases.add(phase);
+        mSpanTimes.add(new long[]{phaseStart - startElapsed, phaseEnd - phaseStart});
+    }
+
+    ContentValues[] spansToContentValues(long syncId) {
+        ContentValues[] spans = new ContentValues[mSpanPhases.size()];
+        for (int i = 0; i < spans.length; i++) {
+            long[] times = mSpanTimes.get(i);
+            ContentValues values = new ContentValues(4);
+            values.put(SyncSpanEntry.COLUMN_SYNC_ID, syncId);
+            values.put(SyncSpanEntry.COLUMN_PHASE, mSpanPhases.get(i));
+            values.put(SyncSpanEntry.COLUMN_START_OFFSET_MS, times[0]);
+            values.put(SyncSpanEntry.COLUMN_DURATION_MS, times[1]);
+            spans[i] = values;
+        }
+        return spans;
+    }
+
+    ContentValues toContentValues() {
+        ContentValues values = new ContentValues(16);
+        values.put(SyncLogEntry.COLUMN_START, start);
+        values.put(SyncLogEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(SyncLogEntry.COLUMN_RESPONSE_CODE, responseCode);
+        values.put(SyncLogEntry.COLUMN_WIRE_BYTES, wireBytes);
+        values.put(SyncLogEntry.COLUMN_DECODED_BYTES, decodedBytes);
+        values.put(SyncLogEntry.COLUMN_COMPRESSED, compressed ? 1 : 0);
+        values.put(SyncLogEntry.COLUMN_METERED, metered ? 1 : 0);
+        values.put(SyncLogEntry.COLUMN_CONNECTION_REUSED, connectionReused ? 1 : 0);
+        values.put(SyncLogEntry.COLUMN_CONNECT_MS, connectMs);
+        values.put(SyncLogEntry.COLUMN_TTFB_MS, ttfbMs);
+        values.put(SyncLogEntry.COLUMN_TRANSFER_MS, transferMs);
+        values.put(SyncLogEntry.COLUMN_CHANGED, changed ? 1 : 0);
+        values.put(SyncLogEntry.COLUMN_SYNC_INTERVAL, syncInterval);
+        values.put(SyncLogEntry.COLUMN_OUTCOME, outcome);
+        values.put(SyncLogEntry.COLUMN_LOCATION_STATUS, locationStatus);
+        return values;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the sync adapter gets forecasts from.  The adapter hands over the location and the
+ * validators of the forecast it already has, and gets back the raw forecast body, which it parses
+ * with ForecastParser and stores.
+ */
+interface WeatherSource {
+
+    /**
+     * Fetches the forecast for a location.  A source that can't reach its server, or whose server
+     * answers with an error code, throws an IOException.
+     *
+     * @param locationQuery the location string the user entered
+     * @param etag the ETag of the stored forecast, or null
+     * @param lastModified the Last-Modified date of the stored forecast, or null
+     * @param deadline when the sync must be done; neither the fetch nor reading the body may
+     *                 block past it
+     * @param stats where the source records what the fetch cost
+     */
+    Response fetch(String locationQuery, String etag, String lastModified,
+                   SyncDeadline deadline, SyncStats stats) throws IOException;
+
+    /**
+     * The answer to a fetch.  The body must be closed once it has been read.
+     */
+    class Response implements Closeable {
+        // Either HTTP_OK, or HTTP_NOT_MODIFIED when the stored forecast is still current
+        final int code;
+        // The decoded forecast body, null when not modified
+        final InputStream body;
+        // Validators of the forecast in body, either may be null
+        final String etag;
+        final String lastModified;
+
+        Response(int code, InputStream body, String etag, String lastModified) {
+            this.code = code;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+}
@@ -3,7 +3,7 @@ package com.example.android.sunshine.app.weardatalayer;
 import android.annotation.SuppressLint;
 import android.util.Log;
 
-import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncRequestGate;
 import com.example.android.sunshine.common.CommonConstants;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
@@ -25,7 +25,8 @@ public class WearDataWearableListenerService extends WearableListenerService {
         String path = dataEvent.getDataItem().getUri().getPath();
         Log.d(TAG, path);
         if (path.equals(CommonConstants.PATH_WEATHER)) {
-          SunshineSyncAdapter.syncImmediately(this);
+          // The watch asks every time it becomes visible, so let the gate drop repeats
+          SyncRequestGate.requestSync(this, false);
         }
       }
     }
@@ -0,0 +1,76 @@
+package com.example.android.sunshine.common;
+
+import java.util.TimeZone;
+
+/**
+ * Converts between instants and the Julian days they fall on in a time zone, with plain
+ * arithmetic and the zone's offset table, so it allocates nothing and runs on a plain JVM.
+ *
+ * Weather dates are stored as the first instant of their local day, which is what
+ * android.text.format.Time.setJulianDay gave for the day Time.getJulianDay found, at the cost of
+ * a Time object per date.
+ */
+public final class JulianDay {
+
+  /** The Julian day of 1 January 1970, as in android.text.format.Time. */
+  public static final int EPOCH_JULIAN_DAY = 2440588;
+
+  private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+  // Longer than any transition overlap, which are an hour or two, so looking back this far from
+  // the later of two instants with the same local time finds the earlier one's offset
+  private static final long OVERLAP_PROBE_MILLIS = 3 * 60 * 60 * 1000L;
+
+  private JulianDay() {
+  }
+
+  /**
+   * @return the Julian day that millis falls on in zone
+   */
+  public static int fromMillis(long millis, TimeZone zone) {
+    long local = millis + zone.getOffset(millis);
+    // Rounding down, so instants before 1970 land on the right day too
+    long days = local >= 0 ? local / DAY_IN_MILLIS : (local + 1) / DAY_IN_MILLIS - 1;
+    return (int) days + EPOCH_JULIAN_DAY;
+  }
+
+  /**
+   * @return the first instant of julianDay in zone: its local midnight, or, if the clocks skip
+   * midnight, the moment they skip to
+   */
+  public static long toMillis(int julianDay, TimeZone zone) {
+    long localMidnight = (julianDay - EPOCH_JULIAN_DAY) * DAY_IN_MILLIS;
+
+    // Guess with the offset at the wrong instant, then correct it with the offset at the guess
+    int offset = zone.getOffset(localMidnight);
+    long millis = localMidnight - offset;
+    int actualOffset = zone.getOffset(millis);
+    if (actualOffset != offset) {
+      long corrected = localMidnight - actualOffset;
+      int correctedOffset = zone.getOffset(corrected);
+      if (correctedOffset != actualOffset) {
+        // Midnight doesn't exist, the day begins when the clocks jump forward.  That's
+        // midnight under the offset from before the jump, like Time gives.
+        return localMidnight - Math.min(actualOffset, correctedOffset);
+      }
+      millis = corrected;
+      offset = actualOffset;
+    }
+
+    // If midnight happens twice, as the clocks go back, the day began the first time
+    int earlierOffset = zone.getOffset(millis - OVERLAP_PROBE_MILLIS);
+    if (earlierOffset > offset) {
+      long earlier = localMidnight - earlierOffset;
+      if (zone.getOffset(earlier) == earlierOffset) {
+        return earlier;
+      }
+    }
+    return millis;
+  }
+
+  /**
+   * @return the first instant of the day millis falls on in zone
+   */
+  public static long normalize(long millis, TimeZone zone) {
+    return toMillis(fromMillis(millis, zone), zone);
+  }
+}
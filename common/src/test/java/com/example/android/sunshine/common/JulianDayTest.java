@@ -0,0 +1,164 @@
+package com.example.android.sunshine.common;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Property tests for JulianDay, checked against java.util.GregorianCalendar in zones with
+ * every kind of clock change: DST at and after midnight, half-hour DST, odd offsets, offsets that
+ * changed outright, and a day that was skipped.
+ */
+public class JulianDayTest {
+
+  private static final String[] ZONES = {
+      "UTC",
+      "America/New_York",
+      "America/Los_Angeles",
+      "America/Sao_Paulo",      // DST began at midnight
+      "America/Havana",         // DST began at midnight, ended at 1am
+      "America/St_Johns",       // -3:30
+      "Europe/London",
+      "Europe/Moscow",          // changed offset without DST
+      "Asia/Tehran",            // DST at midnight, +3:30
+      "Asia/Kolkata",
+      "Asia/Kathmandu",         // +5:45
+      "Australia/Lord_Howe",    // half-hour DST
+      "Pacific/Chatham",        // +12:45
+      "Pacific/Apia",           // skipped 30 December 2011
+      "Pacific/Kiritimati",     // +14
+  };
+
+  private static final long HOUR = 60 * 60 * 1000L;
+  private static final long DAY = 24 * HOUR;
+
+  // 1960 to 2040
+  private static final long FROM = -10 * 365 * DAY;
+  private static final long TO = 70 * 365 * DAY;
+
+  private static final int RANDOM_INSTANTS = 20000;
+
+  @Test
+  public void epoch() {
+    TimeZone utc = TimeZone.getTimeZone("UTC");
+    assertEquals(JulianDay.EPOCH_JULIAN_DAY, JulianDay.fromMillis(0, utc));
+    assertEquals(JulianDay.EPOCH_JULIAN_DAY - 1, JulianDay.fromMillis(-1, utc));
+    assertEquals(0, JulianDay.toMillis(JulianDay.EPOCH_JULIAN_DAY, utc));
+  }
+
+  @Test
+  public void julianDayMatchesCalendar() {
+    Random random = new Random(42);
+    for (String id : ZONES) {
+      TimeZone zone = TimeZone.getTimeZone(id);
+      Calendar calendar = new GregorianCalendar(zone);
+      for (int i = 0; i < RANDOM_INSTANTS; i++) {
+        long millis = FROM + (long) (random.nextDouble() * (TO - FROM));
+        calendar.setTimeInMillis(millis);
+        assertEquals(id + " at " + millis, julianDay(calendar), JulianDay.fromMillis(millis, zone));
+      }
+    }
+  }
+
+  @Test
+  public void normalizeIsStartOfDay() {
+    Random random = new Random(7);
+    for (String id : ZONES) {
+      TimeZone zone = TimeZone.getTimeZone(id);
+      for (int i = 0; i < RANDOM_INSTANTS; i++) {
+        assertStartOfDay(zone, FROM + (long) (random.nextDouble() * (TO - FROM)));
+      }
+    }
+  }
+
+  @Test
+  public void normalizeAcrossTransitions() {
+    // Find every offset change hour by hour, then check each minute of the days around it
+    for (String id : ZONES) {
+      TimeZone zone = TimeZone.getTimeZone(id);
+      int lastOffset = zone.getOffset(FROM);
+      for (long hour = FROM; hour < TO; hour += HOUR) {
+        int offset = zone.getOffset(hour);
+        if (offset != lastOffset) {
+          for (long millis = hour - 2 * DAY; millis < hour + 2 * DAY; millis += 60 * 1000L) {
+            assertStartOfDay(zone, millis);
+          }
+          lastOffset = offset;
+        }
+      }
+    }
+  }
+
+  @Test
+  public void midnightMatchesCalendar() {
+    // Away from a clock change, the day starts at the midnight Calendar computes
+    for (String id : ZONES) {
+      TimeZone zone = TimeZone.getTimeZone(id);
+      Calendar calendar = new GregorianCalendar(zone);
+      for (long millis = FROM; millis < TO; millis += 13 * HOUR) {
+        calendar.setTimeInMillis(millis);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long midnight = calendar.getTimeInMillis();
+        if (zone.getOffset(midnight - 3 * HOUR) == zone.getOffset(midnight + 3 * HOUR)) {
+          assertEquals(id + " at " + millis, midnight, JulianDay.normalize(millis, zone));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void skippedMidnightStartsWhenClocksJump() {
+    // Sao Paulo went from midnight straight to 1am on 19 October 2014
+    TimeZone zone = TimeZone.getTimeZone("America/Sao_Paulo");
+    long jump = 1413687600000L;  // 03:00 UTC, the midnight that didn't happen
+    assertEquals(jump, JulianDay.normalize(jump + 12 * HOUR, zone));
+    assertEquals(jump - DAY, JulianDay.normalize(jump - 1, zone));
+  }
+
+  @Test
+  public void repeatedMidnightStartsTheFirstTime() {
+    // Havana went from 1am back to midnight on 1 November 2015, so that midnight was twice
+    TimeZone zone = TimeZone.getTimeZone("America/Havana");
+    long firstMidnight = 1446350400000L;  // 04:00 UTC, under daylight time
+    assertEquals(firstMidnight, JulianDay.normalize(firstMidnight + 12 * HOUR, zone));
+    assertEquals(firstMidnight, JulianDay.normalize(firstMidnight + 90 * 60 * 1000L, zone));
+  }
+
+  /**
+   * Asserts that normalize(millis) is the first instant of the day millis is on.
+   */
+  private static void assertStartOfDay(TimeZone zone, long millis) {
+    String message = zone.getID() + " at " + millis;
+    long start = JulianDay.normalize(millis, zone);
+    int day = JulianDay.fromMillis(millis, zone);
+    assertTrue(message, start <= millis);
+    assertTrue(message, millis - start < DAY + 2 * HOUR);
+    assertEquals(message, day, JulianDay.fromMillis(start, zone));
+    // Usually day - 1, but Apia went straight from 29 to 31 December 2011
+    assertTrue(message, JulianDay.fromMillis(start - 1, zone) < day);
+    assertEquals(message, start, JulianDay.normalize(start, zone));
+    assertEquals(message, start, JulianDay.toMillis(day, zone));
+  }
+
+  /**
+   * @return the Julian day of calendar's date, by the Fliegel and Van Flandern formula
+   */
+  private static int julianDay(Calendar calendar) {
+    int year = calendar.get(Calendar.YEAR);
+    int month = calendar.get(Calendar.MONTH) + 1;
+    int day = calendar.get(Calendar.DAY_OF_MONTH);
+    int a = (14 - month) / 12;
+    int y = year + 4800 - a;
+    int m = month + 12 * a - 3;
+    return day + (153 * m + 2) / 5 + 365 * y + y / 4 - y / 100 + y / 400 - 32045;
+  }
+}